@@ -0,0 +1,90 @@
+package no.finntech.capturandro;
+
+import android.content.Context;
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.schedulers.Schedulers;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Batch import throughput on the default single thread compared to one thread per core with a
+ * MemoryBudget, as set up by Capturandro.enableParallelImports().
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30, shadows = {ShadowDescriptorLinux.class, ShadowDescriptorBitmapFactory.class})
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class BatchBenchmarkTest {
+    private static final int LONGEST_SIDE = 1024;
+    private static final int CORPUS_COPIES = 3;
+    // A quarter of a 256 MB memory class
+    private static final long MEMORY_BUDGET_BYTES = 64 * 1024 * 1024;
+
+    private Context context;
+    private List<Uri> uris;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        ImportBenchmarks.initCapturandro(context);
+        uris = ImportBenchmarks.copyCorpus(context, CORPUS_COPIES);
+    }
+
+    @After
+    public void tearDown() {
+        ImportBenchmarks.resetCapturandro();
+        ImportBenchmarks.deleteOutputs(context);
+    }
+
+    @Test
+    public void singleThread() throws Exception {
+        measureBatch("batch, 1 thread", 1, MemoryBudget.UNLIMITED);
+    }
+
+    @Test
+    public void threadPerCore() throws Exception {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        measureBatch("batch, thread per core (" + threads + ")", threads, new MemoryBudget(MEMORY_BUDGET_BYTES));
+    }
+
+    private void measureBatch(String name, int threads, MemoryBudget memoryBudget) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Capturandro.setMemoryBudget(memoryBudget);
+            AtomicLong outputBytes = ImportBenchmarks.countOutputBytes();
+            ImportHandler importHandler = new ImportHandler(context, LONGEST_SIDE);
+            Measurement measurement = new Measurement(name + " " + LONGEST_SIDE);
+            for (int iteration = 0; iteration <= Measurement.iterations(); iteration++) {
+                measurement.measure(uris.size(), () -> {
+                    long before = outputBytes.get();
+                    for (ImportResult result : importHandler.batch(Schedulers.from(executor), uris).blockingIterable()) {
+                        assertTrue(String.valueOf(result), result.isSuccess());
+                    }
+                    return outputBytes.get() - before;
+                });
+                ImportBenchmarks.deleteOutputs(context);
+                if (iteration == 0) {
+                    // Warm-up
+                    measurement.reset();
+                }
+            }
+            measurement.print();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package no.finntech.capturandro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * The decodable images of the JPEG corpus in library/src/test/resources/corpus, see its README.
+ */
+final class Corpus {
+    static final String[] IMAGES = {
+            "plain-320x240.jpg",
+            "exif1-be-480x640.jpg",
+            "exif8-le-640x480.jpg",
+            "xmp-exif6-be-640x480.jpg",
+            "fill-exif3-be-640x480.jpg",
+            "exif6-be-1280x960.jpg",
+            "exif3-le-1280x960.jpg",
+            "progressive-exif6-le-1280x960.jpg",
+            "exif6-be-3264x2448.jpg"
+    };
+
+    private Corpus() {
+    }
+
+    static byte[] read(String name) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name);
+        if (in == null) {
+            throw new IOException("Not in the corpus: " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            BitmapUtil.copy(in, out, null);
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Copies the images into the directory, in the order of IMAGES.
+     */
+    static File[] copyTo(File directory) throws IOException {
+        File[] files = new File[IMAGES.length];
+        for (int i = 0; i < IMAGES.length; i++) {
+            files[i] = new File(directory, IMAGES[i]);
+            FileOutputStream out = new FileOutputStream(files[i]);
+            try {
+                out.write(read(IMAGES[i]));
+            } finally {
+                out.close();
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,33 @@
+package no.finntech.capturandro;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Counts the writes that reach the wrapped stream, for a FileOutputStream each one is a syscall.
+ */
+final class CountingOutputStream extends FilterOutputStream {
+    private long writeCalls;
+
+    CountingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        writeCalls++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        // FilterOutputStream would pass the bytes on one by one
+        out.write(buffer, offset, length);
+        writeCalls++;
+    }
+
+    long getWriteCalls() {
+        return writeCalls;
+    }
+}
@@ -0,0 +1,22 @@
+package no.finntech.capturandro;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bytes the shadows read through file descriptors, that is what the library read from its
+ * sources while header parsing and decoding.
+ */
+final class DescriptorReads {
+    private static final AtomicLong bytes = new AtomicLong();
+
+    private DescriptorReads() {
+    }
+
+    static void add(long count) {
+        bytes.addAndGet(count);
+    }
+
+    static long get() {
+        return bytes.get();
+    }
+}
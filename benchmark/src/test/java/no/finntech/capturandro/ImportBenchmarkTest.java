@@ -0,0 +1,152 @@
+package no.finntech.capturandro;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.schedulers.Schedulers;
+
+import static org.junit.Assert.assertNotNull;
+
+/*
+ * Bytes read from the source and wall time per import. The baseline reads the bounds and the
+ * pixels through two FileInputStreams, as decodeBitmapFile used to. The library parses the JPEG
+ * header and decodes the pixels from one descriptor.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30, shadows = {ShadowDescriptorLinux.class, ShadowDescriptorBitmapFactory.class})
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class ImportBenchmarkTest {
+    private static final int LONGEST_SIDE = 1024;
+
+    private Context context;
+    private List<Uri> uris;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        ImportBenchmarks.initCapturandro(context);
+        uris = ImportBenchmarks.copyCorpus(context, 1);
+    }
+
+    @After
+    public void tearDown() {
+        ImportBenchmarks.resetCapturandro();
+        ImportBenchmarks.deleteOutputs(context);
+    }
+
+    @Test
+    public void boundsAndDecode() throws Exception {
+        Measurement twoStreams = new Measurement("bounds + decode, two streams", "read");
+        Measurement oneDescriptor = new Measurement("header + decode, one descriptor", "read");
+        for (int iteration = 0; iteration <= Measurement.iterations(); iteration++) {
+            for (Uri uri : uris) {
+                File image = new File(uri.getPath());
+                twoStreams.measure(() -> decodeWithTwoStreams(image));
+                oneDescriptor.measure(() -> decodeWithOneDescriptor(image));
+            }
+            if (iteration == 0) {
+                // Warm-up
+                twoStreams.reset();
+                oneDescriptor.reset();
+            }
+        }
+        twoStreams.print();
+        oneDescriptor.print();
+    }
+
+    @Test
+    public void galleryImport() throws Exception {
+        AtomicLong openNanos = new AtomicLong();
+        AtomicLong headerNanos = new AtomicLong();
+        AtomicLong decodeNanos = new AtomicLong();
+        AtomicLong encodeNanos = new AtomicLong();
+        Capturandro.setMetrics(trace -> {
+            openNanos.addAndGet(trace.getOpenNanos());
+            headerNanos.addAndGet(trace.getHeaderNanos());
+            decodeNanos.addAndGet(trace.getDecodeNanos());
+            encodeNanos.addAndGet(trace.getEncodeNanos());
+        });
+        ImportHandler importHandler = new ImportHandler(context, LONGEST_SIDE);
+        Measurement imports = new Measurement("gallery import " + LONGEST_SIDE, "read");
+        for (int iteration = 0; iteration <= Measurement.iterations(); iteration++) {
+            if (iteration == 1) {
+                // After the warm-up
+                imports.reset();
+                openNanos.set(0);
+                headerNanos.set(0);
+                decodeNanos.set(0);
+                encodeNanos.set(0);
+            }
+            for (Uri uri : uris) {
+                imports.measure(() -> {
+                    long before = DescriptorReads.get();
+                    assertNotNull(importHandler.gallery(Schedulers.trampoline(), uri).blockingLast());
+                    return DescriptorReads.get() - before;
+                });
+            }
+            ImportBenchmarks.deleteOutputs(context);
+        }
+        imports.print();
+        long count = Math.max(1, imports.getOperations());
+        System.out.println(String.format(Locale.US, "  open %.2f ms, header %.2f ms, decode %.2f ms, encode %.2f ms per import",
+                openNanos.get() / 1e6 / count, headerNanos.get() / 1e6 / count, decodeNanos.get() / 1e6 / count,
+                encodeNanos.get() / 1e6 / count));
+    }
+
+    private static long decodeWithTwoStreams(File image) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        CountingInputStream bounds = new CountingInputStream(new FileInputStream(image));
+        try {
+            BitmapFactory.decodeStream(bounds, null, options);
+        } finally {
+            bounds.close();
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = BitmapUtil.calculateInSampleSize(options.outWidth, options.outHeight, LONGEST_SIDE);
+        CountingInputStream pixels = new CountingInputStream(new FileInputStream(image));
+        try {
+            Bitmap bitmap = BitmapFactory.decodeStream(pixels, null, options);
+            assertNotNull(image.getName(), bitmap);
+            bitmap.recycle();
+        } finally {
+            pixels.close();
+        }
+        return bounds.getCount() + pixels.getCount();
+    }
+
+    private static long decodeWithOneDescriptor(File image) throws IOException {
+        long before = DescriptorReads.get();
+        ParcelFileDescriptor pfd = ParcelFileDescriptor.open(image, ParcelFileDescriptor.MODE_READ_ONLY);
+        try {
+            ImageHeader header = ImageHeader.read(pfd.getFileDescriptor());
+            Bitmap bitmap = BitmapFactoryDecoder.INSTANCE.decode(pfd.getFileDescriptor(), header.getWidth(), header.getHeight(),
+                    LONGEST_SIDE, false, new CancellationSignal());
+            assertNotNull(image.getName(), bitmap);
+            bitmap.recycle();
+        } finally {
+            pfd.close();
+        }
+        return DescriptorReads.get() - before;
+    }
+}
@@ -0,0 +1,77 @@
+package no.finntech.capturandro;
+
+import android.content.Context;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Setup shared by the benchmarks that import through ImportHandler.
+ */
+final class ImportBenchmarks {
+    // Registered in the benchmark module's manifest
+    static final String FILE_PROVIDER_AUTHORITY = "no.finn.capturandro.benchmark.provider";
+
+    private ImportBenchmarks() {
+    }
+
+    /**
+     * Creates the process wide state an app gets from its first Capturandro, without the
+     * ResultCache so every iteration imports for real.
+     */
+    static void initCapturandro(Context context) {
+        Capturandro.setResultCacheMaxBytes(0);
+        new Capturandro(context, null, FILE_PROVIDER_AUTHORITY);
+        // ImageDecoder needs ParcelFileDescriptor.dup(), which Robolectric cannot do for a plain descriptor
+        Capturandro.setImageDecoderEnabled(false);
+    }
+
+    static void resetCapturandro() {
+        Capturandro.setImageDecoderEnabled(true);
+        Capturandro.setMetrics(null);
+        Capturandro.setMemoryBudget(MemoryBudget.UNLIMITED);
+    }
+
+    /**
+     * Copies of the corpus in separate directories, so imports of the same image are not shared.
+     */
+    static List<Uri> copyCorpus(Context context, int copies) throws IOException {
+        List<Uri> uris = new ArrayList<>();
+        for (int i = 0; i < copies; i++) {
+            File directory = new File(context.getFilesDir(), "corpus-" + i);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create " + directory);
+            }
+            for (File image : Corpus.copyTo(directory)) {
+                uris.add(Uri.fromFile(image));
+            }
+        }
+        return uris;
+    }
+
+    /**
+     * Sums the output bytes of every finished import.
+     */
+    static AtomicLong countOutputBytes() {
+        AtomicLong outputBytes = new AtomicLong();
+        Capturandro.setMetrics(trace -> outputBytes.addAndGet(trace.getOutputBytes()));
+        return outputBytes;
+    }
+
+    /**
+     * Deletes the imported images, so the cache dir does not grow between iterations.
+     */
+    static void deleteOutputs(Context context) {
+        File[] outputs = BitmapUtil.getCacheDir(context).listFiles((dir, name) ->
+                name.startsWith(Capturandro.TEMPFILE_PREFIX) && name.endsWith(".jpg"));
+        if (outputs != null) {
+            for (File output : outputs) {
+                output.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package no.finntech.capturandro;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Reading the orientation with JpegHeaderParser compared to ExifInterface, which parses every
+ * segment and tag. Run with -prof gc, as the jmh task does, for the allocation per image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JpegHeaderParserBenchmark {
+    @Param({"exif6-be-1280x960.jpg", "xmp-exif6-be-640x480.jpg", "progressive-exif6-le-1280x960.jpg", "exif6-be-3264x2448.jpg"})
+    public String image;
+
+    private byte[] bytes;
+    private JpegHeaderParser.ByteSource source;
+
+    @Setup
+    public void setUp() throws IOException {
+        bytes = Corpus.read(image);
+        source = (position, buffer, offset, length) -> {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int read = (int) Math.min(length, bytes.length - position);
+            System.arraycopy(bytes, (int) position, buffer, offset, read);
+            return read;
+        };
+    }
+
+    @Benchmark
+    public int jpegHeaderParser() throws IOException {
+        return JpegHeaderParser.parse(source).getOrientation();
+    }
+
+    @Benchmark
+    public int exifInterface() throws IOException {
+        return OrientationUtil.getOrientation(new ExifInterface(new ByteArrayInputStream(bytes)));
+    }
+}
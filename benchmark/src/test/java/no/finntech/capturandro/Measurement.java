@@ -0,0 +1,139 @@
+package no.finntech.capturandro;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Wall time, Java heap allocation and output size of repeated operations. Allocation is summed
+ * over all threads, so work handed to a scheduler counts too. Bitmap pixels live in native
+ * memory with Robolectric's native graphics, as on a device, and are not part of it.
+ */
+final class Measurement {
+    private static final int DEFAULT_ITERATIONS = 5;
+
+    private final String name;
+    private final String output;
+    private long operations;
+    private long nanos;
+    private long allocatedBytes;
+    private long outputBytes;
+
+    interface Operation {
+        /**
+         * Returns the number of bytes produced.
+         */
+        long run() throws Exception;
+    }
+
+    Measurement(String name) {
+        this(name, "out");
+    }
+
+    /**
+     * @param output what the bytes returned by the operations are, for the report
+     */
+    Measurement(String name, String output) {
+        this.name = name;
+        this.output = output;
+    }
+
+    /**
+     * Measured runs after the warm-up, set with -Pbenchmark.iterations.
+     */
+    static int iterations() {
+        return Integer.getInteger("benchmark.iterations", DEFAULT_ITERATIONS);
+    }
+
+    void measure(Operation operation) throws Exception {
+        measure(1, operation);
+    }
+
+    /**
+     * Measures an operation that handles count items at once, the results are per item.
+     */
+    void measure(int count, Operation operation) throws Exception {
+        Map<Long, Long> allocatedBefore = allocatedBytesByThread();
+        long start = System.nanoTime();
+        long output = operation.run();
+        nanos += System.nanoTime() - start;
+        allocatedBytes += allocatedSince(allocatedBefore);
+        outputBytes += output;
+        operations += count;
+    }
+
+    void add(Measurement other) {
+        operations += other.operations;
+        nanos += other.nanos;
+        allocatedBytes += other.allocatedBytes;
+        outputBytes += other.outputBytes;
+    }
+
+    /**
+     * Forgets what was measured so far, e.g. the warm-up.
+     */
+    void reset() {
+        operations = 0;
+        nanos = 0;
+        allocatedBytes = 0;
+        outputBytes = 0;
+    }
+
+    long getOperations() {
+        return operations;
+    }
+
+    long getOutputBytes() {
+        return outputBytes;
+    }
+
+    long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        long count = Math.max(1, operations);
+        return String.format(Locale.US, "%-40s %6d ops %9.1f ops/s %9.2f ms/op %9.1f KB alloc/op %8.1f KB %s/op",
+                name, operations, operations * 1e9 / Math.max(1, nanos), nanos / 1e6 / count,
+                allocatedBytes / 1024.0 / count, outputBytes / 1024.0 / count, output);
+    }
+
+    void print() {
+        System.out.println(this);
+    }
+
+    private static long allocatedSince(Map<Long, Long> before) {
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : allocatedBytesByThread().entrySet()) {
+            Long start = before.get(thread.getKey());
+            allocated += thread.getValue() - (start != null ? start : 0);
+        }
+        return allocated;
+    }
+
+    /**
+     * Through reflection, the android.jar the tests compile against has no java.lang.management.
+     * Threads that ended since are missing, their allocation is lost.
+     */
+    private static Map<Long, Long> allocatedBytesByThread() {
+        Map<Long, Long> allocated = new HashMap<>();
+        try {
+            Object threads = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Method getAllThreadIds = Class.forName("java.lang.management.ThreadMXBean").getMethod("getAllThreadIds");
+            Method getThreadAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long[].class);
+            long[] ids = (long[]) getAllThreadIds.invoke(threads);
+            long[] bytes = (long[]) getThreadAllocatedBytes.invoke(threads, (Object) ids);
+            for (int i = 0; i < ids.length; i++) {
+                if (bytes[i] >= 0) {
+                    allocated.put(ids[i], bytes[i]);
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            // Not a HotSpot JVM, allocation is reported as 0
+        }
+        return allocated;
+    }
+}
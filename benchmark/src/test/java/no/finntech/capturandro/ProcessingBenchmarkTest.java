@@ -0,0 +1,215 @@
+package no.finntech.capturandro;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.util.Locale;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Throughput, allocation and output size of the processing path over the corpus, the cost of
+ * reading the orientation with OrientationUtil compared to the header parser, and the write
+ * calls of encoding straight into the file compared to saveBitmap.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30, shadows = {ShadowDescriptorLinux.class, ShadowDescriptorBitmapFactory.class})
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class ProcessingBenchmarkTest {
+    private static final int LONGEST_SIDE = 1024;
+
+    private Context context;
+    private File[] images;
+
+    private interface ImageOperation {
+        long run(FileDescriptor fd, ImageHeader header) throws Exception;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        images = Corpus.copyTo(context.getCacheDir());
+        // ImageDecoder maps the source through ParcelFileDescriptor.dup(), which Robolectric
+        // cannot do for a plain descriptor, so this measures the BitmapFactory decoder
+        Capturandro.setImageDecoderEnabled(false);
+    }
+
+    @After
+    public void tearDown() {
+        Capturandro.setImageDecoderEnabled(true);
+    }
+
+    @Test
+    public void processedImageFile() throws Exception {
+        measureCorpus("getProcessedImageFile", (fd, header) -> {
+            File file = BitmapUtil.getProcessedImageFile(context, fd, header, LONGEST_SIDE, EncodingOptions.DEFAULT,
+                    new CancellationSignal(), ImportTrace.DISABLED);
+            long length = file.length();
+            file.delete();
+            return length;
+        });
+    }
+
+    @Test
+    public void encodedImage() throws Exception {
+        measureCorpus("getEncodedImage", (fd, header) -> {
+            EncodedImage image = BitmapUtil.getEncodedImage(fd, header, LONGEST_SIDE, EncodingOptions.DEFAULT,
+                    new CancellationSignal(), ImportTrace.DISABLED);
+            assertTrue(Math.max(image.getWidth(), image.getHeight()) <= LONGEST_SIDE);
+            return image.getLength();
+        });
+    }
+
+    /**
+     * Bitmap.compress hands its output over in small chunks. Before PooledOutputStream each one
+     * was a write to the file, saveBitmap buffers them and renames a temporary file into place.
+     */
+    @Test
+    public void encoderOutput() throws Exception {
+        Bitmap[] bitmaps = new Bitmap[images.length];
+        for (int i = 0; i < images.length; i++) {
+            bitmaps[i] = BitmapFactory.decodeFile(images[i].getPath());
+        }
+        EncodingOptions options = EncodingOptions.DEFAULT;
+        ImportStatistics statistics = Capturandro.getImportStatistics();
+        Measurement unbuffered = new Measurement("unbuffered FileOutputStream");
+        Measurement buffered = new Measurement("saveBitmap");
+        long unbufferedWriteCalls = 0;
+        long bufferedWriteCalls = 0;
+        for (int iteration = 0; iteration <= Measurement.iterations(); iteration++) {
+            long[] writeCalls = new long[1];
+            long statisticsWriteCalls = statistics.getWriteCalls();
+            for (Bitmap bitmap : bitmaps) {
+                if (bitmap == null) {
+                    continue;
+                }
+                unbuffered.measure(() -> {
+                    // As saveBitmap wrote before the buffer and the temporary file
+                    File file = new File(BitmapUtil.getUniqueFilename(context, options.getExtension()));
+                    CountingOutputStream out = new CountingOutputStream(new FileOutputStream(file));
+                    try {
+                        bitmap.compress(options.getCompressFormat(), options.getCompressQuality(options.getQuality()), out);
+                    } finally {
+                        out.close();
+                    }
+                    writeCalls[0] += out.getWriteCalls();
+                    long length = file.length();
+                    file.delete();
+                    return length;
+                });
+                buffered.measure(() -> {
+                    File file = BitmapUtil.saveBitmap(context, bitmap, options);
+                    long length = file.length();
+                    file.delete();
+                    return length;
+                });
+            }
+            if (iteration == 0) {
+                // Warm-up
+                unbuffered.reset();
+                buffered.reset();
+            } else {
+                unbufferedWriteCalls += writeCalls[0];
+                bufferedWriteCalls += statistics.getWriteCalls() - statisticsWriteCalls;
+            }
+        }
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+        }
+        printWrites(unbuffered, unbufferedWriteCalls);
+        printWrites(buffered, bufferedWriteCalls);
+        assertTrue(bufferedWriteCalls <= unbufferedWriteCalls);
+    }
+
+    private static void printWrites(Measurement measurement, long writeCalls) {
+        measurement.print();
+        long operations = Math.max(1, measurement.getOperations());
+        System.out.println(String.format(Locale.US, "  %.1f write calls/op, %.1f MB/s", (double) writeCalls / operations,
+                measurement.getOutputBytes() / 1024.0 / 1024.0 / (measurement.getNanos() / 1e9)));
+    }
+
+    @Test
+    public void orientation() throws Exception {
+        Measurement exifInterface = new Measurement("OrientationUtil.readExifFromFile");
+        Measurement headerParser = new Measurement("ImageHeader.read");
+        for (int iteration = 0; iteration <= Measurement.iterations(); iteration++) {
+            for (File image : images) {
+                int[] orientations = new int[2];
+                exifInterface.measure(() -> {
+                    orientations[0] = OrientationUtil.getOrientation(OrientationUtil.readExifFromFile(image));
+                    return 0;
+                });
+                headerParser.measure(() -> {
+                    ParcelFileDescriptor pfd = ParcelFileDescriptor.open(image, ParcelFileDescriptor.MODE_READ_ONLY);
+                    try {
+                        orientations[1] = ImageHeader.read(pfd.getFileDescriptor()).getOrientation();
+                    } finally {
+                        pfd.close();
+                    }
+                    return 0;
+                });
+                if (iteration == 0 && orientations[0] != orientations[1]) {
+                    System.out.println(image.getName() + ": OrientationUtil read " + orientations[0]
+                            + ", ImageHeader read " + orientations[1]);
+                }
+            }
+            if (iteration == 0) {
+                // Warm-up
+                exifInterface.reset();
+                headerParser.reset();
+            }
+        }
+        exifInterface.print();
+        headerParser.print();
+    }
+
+    private void measureCorpus(String name, ImageOperation operation) throws Exception {
+        Measurement[] perImage = new Measurement[images.length];
+        for (int i = 0; i < images.length; i++) {
+            perImage[i] = new Measurement("  " + images[i].getName());
+        }
+        for (int iteration = 0; iteration <= Measurement.iterations(); iteration++) {
+            for (int i = 0; i < images.length; i++) {
+                ParcelFileDescriptor pfd = ParcelFileDescriptor.open(images[i], ParcelFileDescriptor.MODE_READ_ONLY);
+                try {
+                    FileDescriptor fd = pfd.getFileDescriptor();
+                    ImageHeader header = ImageHeader.read(fd);
+                    perImage[i].measure(() -> operation.run(fd, header));
+                } finally {
+                    pfd.close();
+                }
+            }
+            if (iteration == 0) {
+                // Warm-up
+                for (Measurement measurement : perImage) {
+                    measurement.reset();
+                }
+            }
+        }
+        Measurement total = new Measurement(name + " " + LONGEST_SIDE);
+        for (Measurement measurement : perImage) {
+            total.add(measurement);
+        }
+        total.print();
+        for (Measurement measurement : perImage) {
+            measurement.print();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package no.finntech.capturandro;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowNativeBitmapFactory;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+
+/*
+ * The native decoder cannot read a JVM FileDescriptor, so descriptors are decoded as a stream
+ * from their current position, as on a device. The stream is not closed, closing it would close
+ * the descriptor on the JVM.
+ */
+@Implements(value = BitmapFactory.class, minSdk = 26, isInAndroidSdk = false)
+public class ShadowDescriptorBitmapFactory extends ShadowNativeBitmapFactory {
+    @Implementation
+    protected static boolean nativeIsSeekable(FileDescriptor fd) {
+        return true;
+    }
+
+    @Implementation
+    protected static Bitmap nativeDecodeFileDescriptor(FileDescriptor fd, Rect padding, BitmapFactory.Options opts,
+                                                       long inBitmapHandle, long colorSpaceHandle) {
+        CountingInputStream in = new CountingInputStream(new FileInputStream(fd));
+        Bitmap bitmap = BitmapFactory.decodeStream(in, padding, opts);
+        DescriptorReads.add(in.getCount());
+        return bitmap;
+    }
+}
@@ -0,0 +1,45 @@
+package no.finntech.capturandro;
+
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLinux;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Robolectric's fstat() knows nothing about descriptors and its pread() closes the descriptor it
+ * read from. Both are answered from the file channel instead, which leaves the descriptor open, so
+ * the library sees seekable sources as it does on a device.
+ */
+@Implements(className = "libcore.io.Linux", minSdk = 26, isInAndroidSdk = false)
+public class ShadowDescriptorLinux extends ShadowLinux {
+    @Override
+    @Implementation
+    protected StructStat fstat(FileDescriptor fd) throws ErrnoException {
+        try {
+            long size = new FileInputStream(fd).getChannel().size();
+            return new StructStat(0, 0, OsConstants.S_IFREG, 1, 0, 0, 0, size, 0, 0, 0, 4096, (size + 511) / 512);
+        } catch (IOException e) {
+            throw new ErrnoException("fstat", OsConstants.EBADF);
+        }
+    }
+
+    @Override
+    @Implementation
+    protected int pread(FileDescriptor fd, byte[] bytes, int byteOffset, int byteCount, long offset) throws ErrnoException {
+        try {
+            int read = Math.max(new FileInputStream(fd).getChannel().read(ByteBuffer.wrap(bytes, byteOffset, byteCount), offset), 0);
+            DescriptorReads.add(read);
+            return read;
+        } catch (IOException e) {
+            throw new ErrnoException("pread", OsConstants.EIO);
+        }
+    }
+}
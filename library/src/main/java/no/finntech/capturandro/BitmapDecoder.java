@@ -0,0 +1,34 @@
+package no.finntech.capturandro;
+
+import android.graphics.Bitmap;
+import android.os.CancellationSignal;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/*
+ * Decode engine used by BitmapUtil, chosen at runtime: region decoding for huge images,
+ * ImageDecoder on API 28 and up and BitmapFactory below that.
+ */
+interface BitmapDecoder {
+    /**
+     * Decodes the image behind fd to at least longestSide on its longest side, or full size if
+     * longestSide is not positive. Width and height are 0 if the header did not provide them.
+     * softwareRequired is set when the bitmap is drawn into a canvas afterwards, which only depends
+     * on the rotation left to the caller, see appliesOrientation(). Decoders that
+     * work in steps check the signal between them.
+     */
+    Bitmap decode(FileDescriptor fd, int width, int height, int longestSide, boolean softwareRequired,
+                  CancellationSignal signal) throws IOException;
+
+    /**
+     * Whether decoded bitmaps already have the EXIF orientation applied, so the caller must not
+     * rotate them again.
+     */
+    boolean appliesOrientation();
+
+    /**
+     * Peak bytes of bitmap memory one import holds with this decoder, see MemoryBudget.
+     */
+    long estimateRequiredBytes(int width, int height, int longestSide);
+}
@@ -0,0 +1,68 @@
+package no.finntech.capturandro;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.CancellationSignal;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/*
+ * Decodes with BitmapFactory at a power of two sample size, reusing pooled bitmaps through inBitmap.
+ */
+class BitmapFactoryDecoder implements BitmapDecoder {
+    static final BitmapFactoryDecoder INSTANCE = new BitmapFactoryDecoder();
+
+    private BitmapFactoryDecoder() {
+    }
+
+    @Override
+    public boolean appliesOrientation() {
+        return false;
+    }
+
+    @Override
+    public long estimateRequiredBytes(int width, int height, int longestSide) {
+        int sampleSize = BitmapUtil.calculateInSampleSize(width, height, longestSide);
+        return BitmapUtil.estimateRequiredBytes(width, height, sampleSize, longestSide);
+    }
+
+    // Loosely based on code found in
+    // http://stackoverflow.com/questions/477572/android-strange-out-of-memory-issue-while-loading-an-image-to-a-bitmap-object/823966#823966
+    @Override
+    public Bitmap decode(FileDescriptor fd, int width, int height, int longestSide, boolean softwareRequired,
+                         CancellationSignal signal) throws IOException {
+        int sampleSize = BitmapUtil.calculateInSampleSize(width, height, longestSide);
+        BitmapFactory.Options o2 = new BitmapFactory.Options();
+        o2.inSampleSize = sampleSize;
+        o2.inMutable = true;
+        BitmapPool bitmapPool = Capturandro.getBitmapPool();
+        if (bitmapPool != null && width > 0 && height > 0) {
+            o2.inBitmap = bitmapPool.get(
+                    BitmapUtil.ceilDiv(width, sampleSize), BitmapUtil.ceilDiv(height, sampleSize), Bitmap.Config.ARGB_8888
+            );
+        }
+        Bitmap inBitmap = o2.inBitmap;
+        Bitmap bitmap = null;
+        try {
+            BitmapUtil.rewind(fd);
+            try {
+                bitmap = BitmapFactory.decodeFileDescriptor(fd, null, o2);
+            } catch (IllegalArgumentException e) {
+                // The decoder refused the pooled bitmap, decode into a fresh one instead
+                if (inBitmap == null) {
+                    throw e;
+                }
+                o2.inBitmap = null;
+                BitmapUtil.rewind(fd);
+                bitmap = BitmapFactory.decodeFileDescriptor(fd, null, o2);
+            }
+            return bitmap;
+        } finally {
+            if (inBitmap != null && bitmap != inBitmap) {
+                // Not decoded into, still good for the next import
+                bitmapPool.put(inBitmap);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package no.finntech.capturandro;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Bounded pool of mutable bitmaps, reused for decoding (BitmapFactory.Options.inBitmap) and
+ * as transform targets across consecutive imports. Bitmaps are bucketed by allocation size
+ * and the least recently returned ones are recycled when the pool grows past its byte budget.
+ */
+public class BitmapPool {
+    // A pooled bitmap is only handed out if it wastes less than half of its allocation
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final long maxBytes;
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private final ArrayDeque<Bitmap> leastRecentlyUsed = new ArrayDeque<>();
+    private long currentBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Default budget, an eighth of the memory class of the device.
+     */
+    public static long defaultMaxBytes(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager != null ? activityManager.getMemoryClass() : 16;
+        return memoryClass * 1024L * 1024L / 8;
+    }
+
+    /**
+     * Returns a mutable bitmap reconfigured to the given size, or null if none is available.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        int byteCount = width * height * bytesPerPixel(config);
+        Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() > byteCount * MAX_SIZE_MULTIPLE) {
+            misses++;
+            return null;
+        }
+        Bitmap bitmap = entry.getValue().pollLast();
+        if (entry.getValue().isEmpty()) {
+            buckets.remove(entry.getKey());
+        }
+        leastRecentlyUsed.remove(bitmap);
+        currentBytes -= bitmap.getAllocationByteCount();
+        hits++;
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+    }
+
+    /**
+     * Like get(), but the returned bitmap is cleared so it can be drawn into.
+     */
+    Bitmap getCleared(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap != null) {
+            bitmap.eraseColor(Color.TRANSPARENT);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap back to the pool. Bitmaps that can not be reused, or do not fit in the
+     * budget, are recycled.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || byteCount > maxBytes) {
+            bitmap.recycle();
+            return;
+        }
+        ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(byteCount, bucket);
+        }
+        bucket.addLast(bitmap);
+        leastRecentlyUsed.addLast(bitmap);
+        currentBytes += byteCount;
+        trimTo(maxBytes);
+    }
+
+    public synchronized void clear() {
+        trimTo(0);
+    }
+
+    private void trimTo(long size) {
+        while (currentBytes > size && !leastRecentlyUsed.isEmpty()) {
+            Bitmap bitmap = leastRecentlyUsed.pollFirst();
+            int byteCount = bitmap.getAllocationByteCount();
+            ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+            if (bucket != null) {
+                bucket.remove(bitmap);
+                if (bucket.isEmpty()) {
+                    buckets.remove(byteCount);
+                }
+            }
+            currentBytes -= byteCount;
+            evictions++;
+            bitmap.recycle();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    public synchronized int getSize() {
+        return leastRecentlyUsed.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{" +
+                "maxBytes=" + maxBytes +
+                ", currentBytes=" + currentBytes +
+                ", size=" + leastRecentlyUsed.size() +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
@@ -4,59 +4,95 @@ import android.Manifest;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.net.Uri;
 import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 
 import androidx.annotation.RequiresPermission;
 import androidx.core.content.FileProvider;
+import androidx.exifinterface.media.ExifInterface;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.Random;
 
 class BitmapUtil {
     private static final String HUAWEI_MANUFACTURER = "Huawei";
     private static final Random random = new Random();
+    private static final int MIN_ENCODE_QUALITY = 5;
+    static final String TEMPFILE_SUFFIX = ".tmp";
 
     private BitmapUtil() {
     }
 
+    /**
+     * Copies sources that are not seekable (pipes, remote streams) to a temporary file, so they
+     * can be read like any other file afterwards. The caller deletes the file. A cancelled copy
+     * throws OperationCanceledException and leaves nothing behind.
+     */
     @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
-    static Uri getProcessedImage(Context context, File inFile, int longestSide, int orientation) {
-        Bitmap bitmap;
-        bitmap = decodeBitmapFile(inFile, longestSide);
-        Bitmap rotatedBitmap = rotateBitmap(bitmap, orientation);
-        return saveBitmap(context, rotatedBitmap);
+    static File copyToCacheFile(Context context, InputStream inputStream, CancellationSignal signal) throws IOException {
+        File file = new File(getUniqueFilename(context));
+        File temp = getTempFile(file);
+        FileOutputStream fos = new FileOutputStream(temp);
+        boolean copied = false;
+        try {
+            Capturandro.getImportStatistics().addCopied(copy(inputStream, fos, signal));
+            fos.close();
+            commitTempFile(temp, file);
+            recordCacheFile(file);
+            copied = true;
+        } finally {
+            closeQuietly(fos);
+            if (!copied) {
+                temp.delete();
+            }
+        }
+        return file;
     }
 
-    @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
-    static Uri getProcessedImage(Context context, InputStream inputStream, int longestSide, int orientation) {
+    static boolean isSeekable(FileDescriptor fd) {
         try {
-            String filename = getUniqueFilename(context);
-            File file = new File(filename);
-            FileOutputStream fos = new FileOutputStream(file);
-            copy(inputStream, fos);
-
-            Bitmap bitmap = decodeBitmapFile(file, longestSide);
-            Bitmap rotatedBitmap = rotateBitmap(bitmap, orientation);
-            file.delete();
-            return saveBitmap(context, rotatedBitmap);
-        } catch (IOException e) {
-            return Uri.EMPTY;
+            Os.lseek(fd, 0, OsConstants.SEEK_CUR);
+            return OsConstants.S_ISREG(Os.fstat(fd).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    static long size(FileDescriptor fd) throws IOException {
+        try {
+            return Os.fstat(fd).st_size;
+        } catch (ErrnoException e) {
+            throw new IOException(e.getMessage(), e);
         }
     }
 
     @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
     static String getUniqueFilename(Context context) {
+        return getUniqueFilename(context, ".jpg");
+    }
+
+    @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
+    static String getUniqueFilename(Context context, String extension) {
         File cacheDir = getCacheDir(context);
-        return new File(cacheDir, Capturandro.TEMPFILE_PREFIX + System.currentTimeMillis() + "." + random.nextInt() + ".jpg").getAbsolutePath();
+        return new File(cacheDir, Capturandro.TEMPFILE_PREFIX + System.currentTimeMillis() + "." + random.nextInt() + extension).getAbsolutePath();
     }
 
     static File getCacheDir(Context context) {
@@ -74,20 +110,111 @@ class BitmapUtil {
         return cacheDir;
     }
 
+    /**
+     * Encodes into a temporary file next to the result and renames it into place once complete,
+     * so a partially written image is never handed out as a Uri.
+     */
     @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
-    private static Uri saveBitmap(Context context, Bitmap bitmap) throws IllegalArgumentException {
-        FileOutputStream out = null;
-        String filename = getUniqueFilename(context);
-        int compressionPercentage = Capturandro.DEFAULT_STORED_IMAGE_COMPRESSION_PERCENT;
+    static File saveBitmap(Context context, Bitmap bitmap, EncodingOptions options) throws IllegalArgumentException {
+        long start = System.nanoTime();
+        File file = new File(getUniqueFilename(context, options.getExtension()));
+        File temp = getTempFile(file);
+        PooledOutputStream out = null;
+        int attempts = 1;
         try {
-            out = new FileOutputStream(filename);
-            bitmap.compress(Bitmap.CompressFormat.JPEG, compressionPercentage, out);
-        } catch (FileNotFoundException e) {
+            out = new PooledOutputStream(new FileOutputStream(temp));
+            if (options.hasMaxBytes()) {
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                attempts = encodeToFit(bitmap, options, encoded);
+                encoded.writeTo(out);
+            } else {
+                bitmap.compress(options.getCompressFormat(), options.getCompressQuality(options.getQuality()), out);
+            }
+            out.close();
+            commitTempFile(temp, file);
+            recordCacheFile(file);
+        } catch (IOException e) {
+            temp.delete();
             throw new IllegalArgumentException(e.getMessage(), e);
         } finally {
             closeQuietly(out);
         }
-        File file = new File(filename);
+        ImportStatistics statistics = Capturandro.getImportStatistics();
+        statistics.addEncoded(out.getBytesWritten(), System.nanoTime() - start, attempts);
+        statistics.addWriteCalls(out.getWriteCalls());
+        return file;
+    }
+
+    static void recordCacheFile(File file) {
+        CacheManager cacheManager = Capturandro.getCacheManager();
+        if (cacheManager != null) {
+            cacheManager.recordFile(file);
+        }
+    }
+
+    static void deleteCacheFile(File file) {
+        file.delete();
+        CacheManager cacheManager = Capturandro.getCacheManager();
+        if (cacheManager != null) {
+            cacheManager.forgetFile(file);
+        }
+    }
+
+    static File getTempFile(File file) {
+        return new File(file.getPath() + TEMPFILE_SUFFIX);
+    }
+
+    /**
+     * Renames a completely written temporary file to its final name, deleting it if that fails.
+     */
+    static void commitTempFile(File temp, File file) throws IOException {
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Binary searches for the highest quality, up to the configured one, whose encoding fits in
+     * maxBytes. Falls back to the lowest quality, at most the configured one, if nothing fits.
+     * Returns the number of encodes.
+     */
+    private static int encodeToFit(Bitmap bitmap, EncodingOptions options, ByteArrayOutputStream result) {
+        Bitmap.CompressFormat format = options.getCompressFormat();
+        bitmap.compress(format, options.getCompressQuality(options.getQuality()), result);
+        int attempts = 1;
+        int minQuality = Math.min(MIN_ENCODE_QUALITY, options.getQuality());
+        if (result.size() <= options.getMaxBytes() || minQuality == options.getQuality()) {
+            // Fits, or there is no lower quality to try
+            return attempts;
+        }
+        ByteArrayOutputStream candidate = new ByteArrayOutputStream(result.size());
+        int low = minQuality;
+        int high = options.getQuality() - 1;
+        int best = -1;
+        while (low <= high) {
+            int quality = (low + high) >>> 1;
+            candidate.reset();
+            bitmap.compress(format, options.getCompressQuality(quality), candidate);
+            attempts++;
+            if (candidate.size() <= options.getMaxBytes()) {
+                best = quality;
+                result.reset();
+                result.write(candidate.toByteArray(), 0, candidate.size());
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+        if (best == -1) {
+            // Only failures move the search down, so the last attempt was at minQuality
+            result.reset();
+            result.write(candidate.toByteArray(), 0, candidate.size());
+        }
+        return attempts;
+    }
+
+    static Uri getUriForFile(Context context, File file) {
         if (Build.VERSION.SDK_INT >= 24) {
             return FileProvider.getUriForFile(context,
                     Capturandro.getFileProviderAuthority(),
@@ -97,14 +224,24 @@ class BitmapUtil {
         }
     }
 
-    private static long copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[4096];
+    /**
+     * Copies through the per thread buffer of PooledOutputStream, so output must not be one.
+     * The signal, if any, is checked between reads.
+     */
+    static long copy(InputStream input, OutputStream output, CancellationSignal signal) throws IOException {
+        byte[] buffer = PooledOutputStream.threadBuffer();
         long count = 0;
+        int writeCalls = 0;
         int n;
         while (-1 != (n = input.read(buffer))) {
+            if (signal != null) {
+                signal.throwIfCanceled();
+            }
             output.write(buffer, 0, n);
             count += n;
+            writeCalls++;
         }
+        Capturandro.getImportStatistics().addWriteCalls(writeCalls);
         return count;
     }
 
@@ -118,51 +255,353 @@ class BitmapUtil {
         }
     }
 
-    private static Bitmap rotateBitmap(Bitmap sourceBitmap, int orientation) {
+    /**
+     * Encodes into memory, sized for a typical compression ratio so the buffer rarely grows.
+     */
+    private static EncodedImage encodeBitmap(Bitmap bitmap, EncodingOptions options) {
+        long start = System.nanoTime();
+        long expectedBytes = (long) bitmap.getWidth() * bitmap.getHeight() / 4;
+        if (options.hasMaxBytes()) {
+            expectedBytes = Math.min(expectedBytes, options.getMaxBytes());
+        }
+        EncodedImage.Buffer encoded = new EncodedImage.Buffer((int) Math.max(32 * 1024, expectedBytes));
+        int attempts = 1;
+        if (options.hasMaxBytes()) {
+            attempts = encodeToFit(bitmap, options, encoded);
+        } else {
+            bitmap.compress(options.getCompressFormat(), options.getCompressQuality(options.getQuality()), encoded);
+        }
+        Capturandro.getImportStatistics().addEncoded(encoded.size(), System.nanoTime() - start, attempts);
+        return encoded.toEncodedImage(options.getFormat(), bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    interface Encoder<T> {
+        T encode(Bitmap bitmap) throws IOException;
+    }
+
+    private static <T> T transformAndEncode(Bitmap bitmap, int orientation, int longestSide, Encoder<T> encoder,
+                                            CancellationSignal signal, ImportTrace trace) throws IOException {
+        long start = System.nanoTime();
+        long decodedBytes = bitmap.getAllocationByteCount();
+        Bitmap transformedBitmap = transformBitmap(bitmap, orientation, longestSide);
+        long peakBytes = transformedBitmap != bitmap ? decodedBytes + transformedBitmap.getAllocationByteCount() : decodedBytes;
+        trace.addTransform(System.nanoTime() - start, peakBytes);
+        try {
+            signal.throwIfCanceled();
+            start = System.nanoTime();
+            T result = encoder.encode(transformedBitmap);
+            trace.addEncode(System.nanoTime() - start);
+            return result;
+        } finally {
+            release(transformedBitmap);
+        }
+    }
+
+    /**
+     * Rotates the bitmap and scales it down to exactly longestSide in one pass, the decoder
+     * only samples by powers of two. Returns the source itself when there is nothing to do,
+     * otherwise the result is drawn into a pooled bitmap and the source goes back to the pool.
+     */
+    static Bitmap transformBitmap(Bitmap sourceBitmap, int orientation, int longestSide) {
+        float scale = calculateScale(sourceBitmap.getWidth(), sourceBitmap.getHeight(), longestSide);
+        if (scale == 1f && orientation % 360 == 0) {
+            return sourceBitmap;
+        }
         Matrix transformationMatrix = new Matrix();
+        transformationMatrix.postScale(scale, scale);
         transformationMatrix.postRotate(orientation);
-        // Bitmap is immutable, so we need to create a new one based on the transformation
-        return Bitmap.createBitmap(sourceBitmap, 0, 0, sourceBitmap.getWidth(), sourceBitmap.getHeight(), transformationMatrix, true);
+
+        // Move the transformed image back to the origin
+        RectF bounds = new RectF(0, 0, sourceBitmap.getWidth(), sourceBitmap.getHeight());
+        transformationMatrix.mapRect(bounds);
+        transformationMatrix.postTranslate(-bounds.left, -bounds.top);
+
+        Bitmap.Config config = sourceBitmap.getConfig() != null ? sourceBitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap transformedBitmap = obtain(Math.round(bounds.width()), Math.round(bounds.height()), config);
+        Canvas canvas = new Canvas(transformedBitmap);
+        canvas.drawBitmap(sourceBitmap, transformationMatrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        release(sourceBitmap);
+        return transformedBitmap;
+    }
+
+    static Bitmap obtain(int width, int height, Bitmap.Config config) {
+        BitmapPool bitmapPool = Capturandro.getBitmapPool();
+        Bitmap bitmap = bitmapPool != null ? bitmapPool.getCleared(width, height, config) : null;
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    static void release(Bitmap bitmap) {
+        BitmapPool bitmapPool = Capturandro.getBitmapPool();
+        if (bitmapPool != null) {
+            bitmapPool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Decodes straight from a seekable descriptor, transforms and saves the image once the memory
+     * budget admits it, so parallel imports never hold more decoded pixels than the budget allows.
+     * The caller keeps ownership of the descriptor. Dimensions known from the header save the
+     * bounds decode.
+     */
+    @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
+    static File getProcessedImageFile(Context context, FileDescriptor fd, ImageHeader header, int longestSide, EncodingOptions options,
+                                      CancellationSignal signal, ImportTrace trace) throws IOException {
+        return processImage(fd, header, longestSide, bitmap -> saveBitmap(context, bitmap, options), signal, trace);
+    }
+
+    /**
+     * Small version of the image to show while the full one is processed. Uses the embedded EXIF
+     * thumbnail if it is large enough, otherwise decodes with a high sample size.
+     */
+    @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
+    static File getPreviewImageFile(Context context, FileDescriptor fd, ImageHeader header, int previewSide, EncodingOptions options,
+                                    CancellationSignal signal) throws IOException {
+        Bitmap thumbnail = readExifThumbnail(fd, header, previewSide);
+        if (thumbnail != null) {
+            return transformAndEncode(thumbnail, header.getOrientation(), previewSide, bitmap -> saveBitmap(context, bitmap, options),
+                    signal, ImportTrace.DISABLED);
+        }
+        return getProcessedImageFile(context, fd, header, previewSide, options, signal, ImportTrace.DISABLED);
     }
 
-    // Loosely based on code found in
-    // http://stackoverflow.com/questions/477572/android-strange-out-of-memory-issue-while-loading-an-image-to-a-bitmap-object/823966#823966
-    private static Bitmap decodeBitmapFile(File file, int longestSide) throws IllegalArgumentException {
-        FileInputStream inJustDecodeBoundsImageStream = null;
-        FileInputStream inSampleSizeImageStream = null;
+    /**
+     * Returns null unless the image has an EXIF thumbnail with at least previewSide pixels on its
+     * longest side and the aspect ratio of the image, some cameras letterbox their thumbnails.
+     */
+    private static Bitmap readExifThumbnail(FileDescriptor fd, ImageHeader header, int previewSide) {
+        if (!header.hasDimensions()) {
+            return null;
+        }
+        Bitmap thumbnail;
         try {
+            rewind(fd);
+            ExifInterface exif = new ExifInterface(fd);
+            thumbnail = exif.hasThumbnail() ? exif.getThumbnailBitmap() : null;
+        } catch (IOException e) {
+            return null;
+        }
+        if (thumbnail == null) {
+            return null;
+        }
+        float imageRatio = header.getWidth() / (float) header.getHeight();
+        float thumbnailRatio = thumbnail.getWidth() / (float) thumbnail.getHeight();
+        if (Math.max(thumbnail.getWidth(), thumbnail.getHeight()) < previewSide
+                || Math.abs(imageRatio - thumbnailRatio) > imageRatio * 0.01f) {
+            thumbnail.recycle();
+            return null;
+        }
+        return thumbnail;
+    }
 
-            // Decode image size
-            inJustDecodeBoundsImageStream = new FileInputStream(file);
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(inJustDecodeBoundsImageStream, null, o);
+    /**
+     * Like getProcessedImageFile, but keeps the encoded image in memory instead of writing it.
+     */
+    static EncodedImage getEncodedImage(FileDescriptor fd, ImageHeader header, int longestSide, EncodingOptions options,
+                                        CancellationSignal signal, ImportTrace trace) throws IOException {
+        return processImage(fd, header, longestSide, bitmap -> encodeBitmap(bitmap, options), signal, trace);
+    }
 
-            // Decode actual image
-            BitmapFactory.Options o2 = new BitmapFactory.Options();
-            o2.inSampleSize = calculateInSampleSize(o, longestSide);
-            inSampleSizeImageStream = new FileInputStream(file);
+    /**
+     * Whether the source can be returned as is, see EncodingOptions.isPassthrough(). Rotation
+     * needs no handling: the orientation of a JPEG header comes from the file's own EXIF tag,
+     * which is kept along with the rest of the bytes.
+     */
+    static boolean canPassThrough(FileDescriptor fd, ImageHeader header, int longestSide, EncodingOptions options) throws IOException {
+        return options.isPassthrough() && options.getFormat() == EncodingOptions.Format.JPEG
+                && header.isJpeg() && header.hasDimensions()
+                && (longestSide <= 0 || Math.max(header.getWidth(), header.getHeight()) <= longestSide)
+                && (!options.hasMaxBytes() || size(fd) <= options.getMaxBytes());
+    }
 
-            return BitmapFactory.decodeStream(inSampleSizeImageStream, null, o2);
-        } catch (FileNotFoundException e) {
-            throw new IllegalArgumentException(e.getMessage(), e);
+    /**
+     * Copies the source to the cache dir without decoding it, for sources that pass canPassThrough.
+     */
+    @RequiresPermission(Manifest.permission.WRITE_EXTERNAL_STORAGE)
+    static File getPassthroughImageFile(Context context, FileDescriptor fd, CancellationSignal signal, ImportTrace trace)
+            throws IOException {
+        long start = System.nanoTime();
+        rewind(fd);
+        File file = new File(getUniqueFilename(context));
+        File temp = getTempFile(file);
+        FileOutputStream out = new FileOutputStream(temp);
+        boolean copied = false;
+        try {
+            long bytes = copy(new FileInputStream(fd), out, signal);
+            out.close();
+            commitTempFile(temp, file);
+            recordCacheFile(file);
+            Capturandro.getImportStatistics().addPassthrough(bytes);
+            copied = true;
         } finally {
-            closeQuietly(inJustDecodeBoundsImageStream);
-            closeQuietly(inSampleSizeImageStream);
+            closeQuietly(out);
+            if (!copied) {
+                temp.delete();
+            }
+        }
+        trace.addEncode(System.nanoTime() - start);
+        return file;
+    }
+
+    /**
+     * Like getPassthroughImageFile, but reads the source into memory. The dimensions are those of
+     * the stored pixels, before the EXIF orientation is applied.
+     */
+    static EncodedImage readPassthroughImage(FileDescriptor fd, ImageHeader header, CancellationSignal signal, ImportTrace trace)
+            throws IOException {
+        long start = System.nanoTime();
+        long length = size(fd);
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Image too large: " + length + " bytes");
         }
+        rewind(fd);
+        EncodedImage.Buffer buffer = new EncodedImage.Buffer((int) length);
+        copy(new FileInputStream(fd), buffer, signal);
+        Capturandro.getImportStatistics().addPassthrough(length);
+        trace.addEncode(System.nanoTime() - start);
+        return buffer.toEncodedImage(EncodingOptions.Format.JPEG, header.getWidth(), header.getHeight());
     }
 
+    /**
+     * Reads a file written by saveBitmap back into memory, for results served from the ResultCache.
+     */
+    static EncodedImage readEncodedImage(File file, EncodingOptions.Format format) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Image too large: " + file);
+        }
+        EncodedImage.Buffer buffer = new EncodedImage.Buffer((int) length);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            copy(in, buffer, null);
+        } finally {
+            closeQuietly(in);
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(buffer.toEncodedImage(format, 0, 0).openStream(), null, bounds);
+        return buffer.toEncodedImage(format, bounds.outWidth, bounds.outHeight);
+    }
 
-    private static int calculateInSampleSize(BitmapFactory.Options options, int longestSide) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
+    /**
+     * Checks the signal between stages and while waiting for the memory budget, a cancelled
+     * import throws OperationCanceledException.
+     */
+    private static <T> T processImage(FileDescriptor fd, ImageHeader header, int longestSide, Encoder<T> encoder,
+                                      CancellationSignal signal, ImportTrace trace) throws IOException {
+        long start = System.nanoTime();
+        int width = header.getWidth();
+        int height = header.getHeight();
+        if (!header.hasDimensions()) {
+            // Both passes share one descriptor, the bounds pass only reads the image header
+            BitmapFactory.Options bounds = decodeBounds(fd);
+            width = bounds.outWidth;
+            height = bounds.outHeight;
+        }
+        BitmapDecoder decoder = getDecoder(width, height, longestSide);
+        long requiredBytes = decoder.estimateRequiredBytes(width, height, longestSide);
+        long boundsNanos = System.nanoTime() - start;
 
-        int sampleSize = Math.max(height, width) / longestSide;
-        if (sampleSize > 1) {
+        start = System.nanoTime();
+        MemoryBudget memoryBudget = Capturandro.getMemoryBudget();
+        signal.setOnCancelListener(memoryBudget::wakeUp);
+        try {
+            memoryBudget.acquire(requiredBytes, signal);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory budget");
+        } finally {
+            signal.setOnCancelListener(null);
+        }
+        trace.addBudgetWait(System.nanoTime() - start);
+        try {
+            start = System.nanoTime();
+            // Only the rotation the decoder leaves to us needs a canvas, and so a software bitmap
+            int orientation = decoder.appliesOrientation() ? 0 : header.getOrientation();
+            boolean softwareRequired = orientation % 360 != 0;
+            Bitmap bitmap = decoder.decode(fd, width, height, longestSide, softwareRequired, signal);
+            if (bitmap == null) {
+                throw new IOException("Could not decode image");
+            }
+            trace.addDecode(boundsNanos + System.nanoTime() - start, width, height,
+                    calculateInSampleSize(width, height, longestSide), decoder);
+            if (signal.isCanceled()) {
+                release(bitmap);
+                throw new OperationCanceledException();
+            }
+            return transformAndEncode(bitmap, orientation, longestSide, encoder, signal, trace);
+        } finally {
+            memoryBudget.release(requiredBytes);
+        }
+    }
+
+    private static BitmapDecoder getDecoder(int width, int height, int longestSide) {
+        if (longestSide > 0 && (long) width * height > Capturandro.getTiledDecodeThreshold()) {
+            return RegionBitmapDecoder.INSTANCE;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && Capturandro.isImageDecoderEnabled()) {
+            return ImageDecoderDecoder.INSTANCE;
+        }
+        return BitmapFactoryDecoder.INSTANCE;
+    }
+
+    private static BitmapFactory.Options decodeBounds(FileDescriptor fd) throws IOException {
+        rewind(fd);
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeFileDescriptor(fd, null, o);
+        return o;
+    }
+
+    /**
+     * Peak ARGB bytes held by one import decoding the whole image: the sampled decode plus the
+     * transformed copy.
+     */
+    static long estimateRequiredBytes(int width, int height, int sampleSize, int longestSide) {
+        long sampledWidth = ceilDiv(width, sampleSize);
+        long sampledHeight = ceilDiv(height, sampleSize);
+        float scale = calculateScale((int) sampledWidth, (int) sampledHeight, longestSide);
+        long decodedBytes = sampledWidth * sampledHeight * 4;
+        long transformedBytes = (long) (sampledWidth * scale) * (long) (sampledHeight * scale) * 4;
+        return decodedBytes + transformedBytes;
+    }
+
+    static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    static void rewind(FileDescriptor fd) throws IOException {
+        try {
+            Os.lseek(fd, 0, OsConstants.SEEK_SET);
+        } catch (ErrnoException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Largest power of two that still decodes the longest side to at least longestSide pixels.
+     */
+    static int calculateInSampleSize(int width, int height, int longestSide) {
+        int sampleSize = 1;
+        if (longestSide <= 0) {
             return sampleSize;
-        } else {
-            return 1;
         }
+        int longest = Math.max(height, width);
+        while (longest / (sampleSize * 2) >= longestSide) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Scale factor that brings the longest side down to longestSide, never scales up.
+     */
+    static float calculateScale(int width, int height, int longestSide) {
+        int longest = Math.max(height, width);
+        if (longestSide <= 0 || longest <= longestSide) {
+            return 1f;
+        }
+        return longestSide / (float) longest;
     }
-}
\ No newline at end of file
+}
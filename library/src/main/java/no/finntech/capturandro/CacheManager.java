@@ -0,0 +1,360 @@
+package no.finntech.capturandro;
+
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Keeps the processed images and temporary files Capturandro writes to the cache dir within a
+ * size and age limit. Files are recorded in an append only index as they are written, so the
+ * directory is only listed once, when there is no index yet. The index is only read and written
+ * on a background priority thread, where eviction runs in small batches, oldest first, skipping
+ * files that are pinned. Files younger than MIN_AGE_MILLIS are never evicted: a result is only
+ * pinned by the ImportJournal once it is delivered, and batch results wait for the ones before
+ * them.
+ */
+public class CacheManager {
+    static final String INDEX_NAME = Capturandro.TEMPFILE_PREFIX + "index";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BATCH_SIZE = 16;
+    private static final long BATCH_DELAY_MILLIS = 200;
+    // Temporary files are written continuously, older ones were left behind by a killed process
+    private static final long STALE_TEMP_FILE_MILLIS = 60 * 60 * 1000;
+    private static final long MIN_AGE_MILLIS = 10 * 60 * 1000;
+
+    private final File cacheDir;
+    private final File indexFile;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    // In the order the files were written, the first entry is the oldest
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    // Guarded by itself, so pinning never waits for the cache thread
+    private final Map<String, Integer> pins = new HashMap<>();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "capturandro-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Writer indexWriter;
+    // Written under the lock, read by getSize() without it
+    private volatile long size;
+    private int indexLines;
+    private volatile boolean loaded;
+    private boolean trimScheduled;
+    private boolean tempFilesSwept;
+
+    CacheManager(File cacheDir, long maxBytes, long maxAgeMillis) {
+        this.cacheDir = cacheDir;
+        this.indexFile = new File(cacheDir, INDEX_NAME);
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Protects the file behind a Uri handed out by Capturandro from eviction until unpin is called
+     * as many times, e.g. while it is being uploaded. Pins only last for the process.
+     */
+    public void pin(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name != null) {
+            synchronized (pins) {
+                Integer count = pins.get(name);
+                pins.put(name, count != null ? count + 1 : 1);
+            }
+        }
+    }
+
+    public void unpin(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name == null) {
+            return;
+        }
+        synchronized (pins) {
+            Integer count = pins.get(name);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                pins.put(name, count - 1);
+            } else {
+                pins.remove(name);
+            }
+        }
+    }
+
+    public boolean isPinned(Uri uri) {
+        String name = uri.getLastPathSegment();
+        if (name == null) {
+            return false;
+        }
+        synchronized (pins) {
+            return pins.containsKey(name);
+        }
+    }
+
+    /**
+     * Bytes of the files currently tracked, 0 until the index has been read on the cache thread.
+     */
+    public long getSize() {
+        if (!loaded) {
+            executor.execute(this::loadIndex);
+        }
+        return size;
+    }
+
+    private synchronized void loadIndex() {
+        load();
+    }
+
+    /**
+     * Records a file written to the cache dir, or its new size if it is already tracked. Returns
+     * at once, the index is updated on the cache thread.
+     */
+    void recordFile(final File file) {
+        if (cacheDir.equals(file.getParentFile())) {
+            executor.execute(() -> record(file));
+        }
+    }
+
+    private synchronized void record(File file) {
+        load();
+        Entry entry = new Entry(file.length(), System.currentTimeMillis());
+        Entry previous = entries.remove(file.getName());
+        if (previous != null) {
+            size -= previous.length;
+        }
+        entries.put(file.getName(), entry);
+        size += entry.length;
+        appendToIndex("+\t" + file.getName() + "\t" + entry.length + "\t" + entry.createdAt);
+        if (size > maxBytes || entries.values().iterator().next().createdAt < entry.createdAt - maxAgeMillis) {
+            scheduleTrim(0);
+        }
+    }
+
+    /**
+     * Stops tracking a file Capturandro deleted itself.
+     */
+    void forgetFile(final File file) {
+        executor.execute(() -> forget(file));
+    }
+
+    private synchronized void forget(File file) {
+        if (!loaded) {
+            return;
+        }
+        Entry previous = entries.remove(file.getName());
+        if (previous != null) {
+            size -= previous.length;
+            appendToIndex("-\t" + file.getName());
+        }
+    }
+
+    /**
+     * Starts evicting in the background if the cache is over its limits or has expired files.
+     */
+    synchronized void scheduleTrim(long delayMillis) {
+        if (trimScheduled) {
+            return;
+        }
+        trimScheduled = true;
+        executor.schedule(this::trimBatch, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void trimBatch() {
+        trimScheduled = false;
+        load();
+        if (!tempFilesSwept) {
+            tempFilesSwept = true;
+            sweepTempFiles(cacheDir);
+        }
+        long now = System.currentTimeMillis();
+        long expiredBefore = now - maxAgeMillis;
+        int evicted = 0;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (evicted < BATCH_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Entry> next = iterator.next();
+            Entry entry = next.getValue();
+            if (size <= maxBytes && entry.createdAt >= expiredBefore) {
+                // Everything after this one is newer
+                break;
+            }
+            if (entry.createdAt > now - MIN_AGE_MILLIS) {
+                // May not be delivered yet, and neither may the newer ones. Still over the limit,
+                // so try again once this one is old enough.
+                scheduleTrim(entry.createdAt + MIN_AGE_MILLIS - now);
+                break;
+            }
+            synchronized (pins) {
+                if (pins.containsKey(next.getKey())) {
+                    continue;
+                }
+            }
+            new File(cacheDir, next.getKey()).delete();
+            iterator.remove();
+            size -= entry.length;
+            appendToIndex("-\t" + next.getKey());
+            evicted++;
+        }
+        if (evicted == BATCH_SIZE) {
+            scheduleTrim(BATCH_DELAY_MILLIS);
+        } else if (indexLines > entries.size() * 2 + 64) {
+            compactIndex();
+        }
+    }
+
+    /**
+     * Deletes temporary files a killed process left behind in the cache dir and the directories
+     * Capturandro keeps in it. They never made it into the index.
+     */
+    private void sweepTempFiles(File directory) {
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS;
+        File[] files = directory.listFiles((dir, filename) -> filename.startsWith(Capturandro.TEMPFILE_PREFIX)
+                || filename.endsWith(BitmapUtil.TEMPFILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                if (directory.equals(cacheDir)) {
+                    sweepTempFiles(file);
+                }
+            } else if (file.getName().endsWith(BitmapUtil.TEMPFILE_SUFFIX) && file.lastModified() < staleBefore
+                    && !entries.containsKey(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (indexFile.exists()) {
+            readIndex();
+        } else {
+            importExistingFiles();
+        }
+    }
+
+    private void readIndex() {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    indexLines++;
+                    String[] fields = line.split("\t");
+                    if (fields.length == 4 && "+".equals(fields[0])) {
+                        Entry entry = new Entry(Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                        Entry previous = entries.remove(fields[1]);
+                        if (previous != null) {
+                            size -= previous.length;
+                        }
+                        entries.put(fields[1], entry);
+                        size += entry.length;
+                    } else if (fields.length == 2 && "-".equals(fields[0])) {
+                        Entry previous = entries.remove(fields[1]);
+                        if (previous != null) {
+                            size -= previous.length;
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // A torn last line after a crash loses at most that entry
+            Log.i("Capturandro", "Unable to read cache index", e);
+        }
+    }
+
+    /**
+     * First run, or the index was lost: list the directory once and write a fresh index.
+     */
+    private void importExistingFiles() {
+        File[] files = cacheDir.listFiles((dir, filename) -> filename.startsWith(Capturandro.TEMPFILE_PREFIX)
+                && (filename.endsWith(".jpg") || filename.endsWith(".webp") || filename.endsWith(BitmapUtil.TEMPFILE_SUFFIX)));
+        if (files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (File file : files) {
+                Entry entry = new Entry(file.length(), file.lastModified());
+                entries.put(file.getName(), entry);
+                size += entry.length;
+            }
+        }
+        compactIndex();
+    }
+
+    private void appendToIndex(String line) {
+        try {
+            if (indexWriter == null) {
+                indexWriter = new OutputStreamWriter(new FileOutputStream(indexFile, true), UTF_8);
+            }
+            indexWriter.write(line);
+            indexWriter.write('\n');
+            indexWriter.flush();
+            indexLines++;
+        } catch (IOException e) {
+            Log.i("Capturandro", "Unable to write cache index", e);
+        }
+    }
+
+    /**
+     * Rewrites the index with only the live entries and renames it into place.
+     */
+    private void compactIndex() {
+        File temp = BitmapUtil.getTempFile(indexFile);
+        try {
+            Writer writer = new OutputStreamWriter(new PooledOutputStream(new FileOutputStream(temp)), UTF_8);
+            try {
+                for (Map.Entry<String, Entry> next : entries.entrySet()) {
+                    Entry entry = next.getValue();
+                    writer.write("+\t" + next.getKey() + "\t" + entry.length + "\t" + entry.createdAt + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (indexWriter != null) {
+                indexWriter.close();
+                indexWriter = null;
+            }
+            BitmapUtil.commitTempFile(temp, indexFile);
+            indexLines = entries.size();
+        } catch (IOException e) {
+            temp.delete();
+            Log.i("Capturandro", "Unable to compact cache index", e);
+        }
+    }
+
+    private static class Entry {
+        private final long length;
+        private final long createdAt;
+
+        Entry(long length, long createdAt) {
+            this.length = length;
+            this.createdAt = createdAt;
+        }
+    }
+}
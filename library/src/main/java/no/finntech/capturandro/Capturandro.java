@@ -2,6 +2,7 @@ package no.finntech.capturandro;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.content.ActivityNotFoundException;
 import android.content.ClipData;
 import android.content.Context;
@@ -12,16 +13,25 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.provider.MediaStore;
+import android.util.Log;
 
 import androidx.annotation.RequiresPermission;
 import androidx.core.content.FileProvider;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
-import io.reactivex.Completable;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
 import io.reactivex.Scheduler;
+import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.Disposable;
 import io.reactivex.schedulers.Schedulers;
 
@@ -30,40 +40,159 @@ import io.reactivex.schedulers.Schedulers;
 */
 public class Capturandro {
     private static final String KEY = "CAPTURANDO_STATE";
+    private static final String KEY_SESSION = "CAPTURANDO_SESSION";
     protected static final String TEMPFILE_PREFIX = "capturandro-";
     public static final int DEFAULT_STORED_IMAGE_COMPRESSION_PERCENT = 75;
+    public static final long DEFAULT_RESULT_CACHE_BYTES = 32 * 1024 * 1024;
+    public static final long DEFAULT_TILED_DECODE_THRESHOLD = 40 * 1000 * 1000;
+    public static final long DEFAULT_CACHE_MAX_BYTES = 64 * 1024 * 1024;
+    public static final long DEFAULT_CACHE_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
 
     private final CapturandoCallback callback;
-    private static Scheduler scheduler = Schedulers.from(Executors.newSingleThreadExecutor());
+    // The executor behind the default scheduler, the single thread or the pool of enableParallelImports
+    private static ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static boolean parallelImportsEnabled;
+    private static Scheduler scheduler = Schedulers.from(executor);
+    private static final ImportStatistics importStatistics = new ImportStatistics();
+    private static BitmapPool bitmapPool;
+    private static MemoryBudget memoryBudget = MemoryBudget.UNLIMITED;
+    private static long resultCacheMaxBytes = DEFAULT_RESULT_CACHE_BYTES;
+    private static ResultCache resultCache;
+    private static boolean imageDecoderEnabled = true;
+    private static boolean hardwareBitmapsEnabled = false;
+    private static long tiledDecodeThreshold = DEFAULT_TILED_DECODE_THRESHOLD;
+    private static int previewSide = 0;
+    private static CapturandroMetrics metrics = CapturandroMetrics.NONE;
+    private static long cacheMaxBytes = DEFAULT_CACHE_MAX_BYTES;
+    private static long cacheMaxAgeMillis = DEFAULT_CACHE_MAX_AGE_MILLIS;
+    private static CacheManager cacheManager;
+    private static RemoteFetcher remoteFetcher;
+    private static final ResultRegistry resultRegistry = new ResultRegistry();
+    private static ImportJournal importJournal;
+    private final Context applicationContext;
+    private String session = UUID.randomUUID().toString();
+    private Disposable resuming;
     private CapturandoState state = null;
-    private static boolean initialStartup = true;
     private static String fileProviderAuthority;
-    private Disposable deleteTask;
 
     public Capturandro(Context context, CapturandoCallback callback, String fileProviderAuthority) {
         super();
         this.callback = callback;
+        this.applicationContext = context.getApplicationContext();
         Capturandro.fileProviderAuthority = fileProviderAuthority;
-        if (initialStartup) {
-            clearAllCachedBitmaps(context);
-            initialStartup = false;
+        if (bitmapPool == null) {
+            bitmapPool = new BitmapPool(BitmapPool.defaultMaxBytes(context));
+        }
+        if (resultCache == null && resultCacheMaxBytes > 0) {
+            resultCache = new ResultCache(BitmapUtil.getCacheDir(context), resultCacheMaxBytes);
+        }
+        if (cacheManager == null) {
+            cacheManager = new CacheManager(BitmapUtil.getCacheDir(context), cacheMaxBytes, cacheMaxAgeMillis);
+            cacheManager.scheduleTrim(0);
+        }
+        if (remoteFetcher == null) {
+            remoteFetcher = HttpRemoteFetcher.withDefaultCache(BitmapUtil.getCacheDir(context));
+        }
+        if (importJournal == null) {
+            importJournal = new ImportJournal(BitmapUtil.getCacheDir(context), cacheMaxAgeMillis);
         }
     }
 
+    /**
+     * Also hands the imports started by the previous instance of the activity to the callback
+     * again, finished or still running, so a configuration change does not import anything twice.
+     * After the process was killed, unfinished imports are resumed and finished ones are served
+     * from their output files. Those reach the callback a moment later, once the journal has been
+     * read in the background.
+     */
+    @SuppressWarnings("unchecked")
     public void onCreate(Bundle savedInstanceState) {
         if (savedInstanceState != null) {
             state = savedInstanceState.getParcelable(KEY);
+            String savedSession = savedInstanceState.getString(KEY_SESSION);
+            if (savedSession != null) {
+                session = savedSession;
+                if (resultRegistry.get(session).isEmpty()) {
+                    // A new process, the journal knows what the previous one was doing
+                    resuming = importJournal.resume(applicationContext, session)
+                            .observeOn(AndroidSchedulers.mainThread())
+                            .subscribe(jobs -> {
+                                for (ImportJournal.Job job : jobs) {
+                                    resume(job);
+                                }
+                            }, error -> Log.i("Capturandro", "Unable to resume imports", error));
+                }
+            }
+        }
+        for (ResultRegistry.Entry entry : resultRegistry.get(session)) {
+            switch (entry.getKind()) {
+                case IMPORT:
+                    callback.onImport(entry.getRequestCode(), (Observable<Uri>) entry.getResults());
+                    break;
+                case ENCODED_IMPORT:
+                    if (callback instanceof CapturandoEncodedCallback) {
+                        ((CapturandoEncodedCallback) callback).onEncodedImport(entry.getRequestCode(),
+                                (Observable<EncodedImage>) entry.getResults());
+                    }
+                    break;
+                case BATCH_IMPORT:
+                    if (callback instanceof CapturandoBatchCallback) {
+                        ((CapturandoBatchCallback) callback).onBatchImport(entry.getRequestCode(),
+                                (Flowable<ImportResult>) entry.getResults());
+                    }
+                    break;
+            }
         }
     }
 
+    /**
+     * Cancels running imports and forgets their results.
+     *
+     * @deprecated Use onDestroy(Activity), which hands running imports to the activity recreated
+     * after a configuration change.
+     */
+    @Deprecated
     public void onDestroy() {
-        if (deleteTask != null && !deleteTask.isDisposed()) {
-            deleteTask.dispose();
+        stopResuming();
+        resultRegistry.clear(session);
+        importJournal.clear(session);
+    }
+
+    /**
+     * Cancels running imports and forgets their results unless the activity is only destroyed
+     * to be recreated for a configuration change.
+     */
+    public void onDestroy(Activity activity) {
+        stopResuming();
+        if (activity.isChangingConfigurations()) {
+            resultRegistry.recreating(session);
+        } else {
+            resultRegistry.clear(session);
+            importJournal.clear(session);
+        }
+    }
+
+    private void stopResuming() {
+        // The recreated activity resumes the jobs again
+        if (resuming != null) {
+            resuming.dispose();
+            resuming = null;
         }
     }
 
     public void onSaveInstanceState(Bundle outState) {
         outState.putParcelable(KEY, state);
+        outState.putString(KEY_SESSION, session);
+    }
+
+    /**
+     * Forgets the results of the imports with this request code, e.g. once they are uploaded, so
+     * they are not handed to the callback again after a configuration change. Imports still
+     * running are cancelled.
+     */
+    public void clearResults(int requestCode) {
+        resultRegistry.remove(session, requestCode);
+        importJournal.clear(session, requestCode);
     }
 
     @RequiresPermission(Manifest.permission.CAMERA)
@@ -80,6 +209,154 @@ public class Capturandro {
         Capturandro.scheduler = scheduler;
     }
 
+    /**
+     * Processes up to one image per core in parallel. Decodes are only admitted while their bitmaps
+     * fit in a quarter of the memory class, so large images still run one at a time. Low RAM
+     * devices keep the default single thread. Call it before the first import: the pool is only
+     * created once, and the single thread shuts down once the imports queued on it are done.
+     */
+    public static void enableParallelImports(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null || activityManager.isLowRamDevice()) {
+            return;
+        }
+        memoryBudget = MemoryBudget.fromMemoryClass(context);
+        if (!parallelImportsEnabled) {
+            parallelImportsEnabled = true;
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+            ExecutorService previous = executor;
+            executor = Executors.newFixedThreadPool(threads);
+            previous.shutdown();
+        }
+        scheduler = Schedulers.from(executor);
+    }
+
+    public static MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public static void setMemoryBudget(MemoryBudget memoryBudget) {
+        Capturandro.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Pool shared by all imports for decode and transform bitmaps. Call clear() on it from
+     * onTrimMemory to give the memory back between imports.
+     */
+    public static BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public static void setBitmapPool(BitmapPool bitmapPool) {
+        Capturandro.bitmapPool = bitmapPool;
+    }
+
+    /**
+     * Size of the disk cache that lets re-imports of an unchanged image return the earlier result.
+     * Set to 0 to disable the cache. Has to be called before the first Capturandro is created.
+     */
+    public static void setResultCacheMaxBytes(long maxBytes) {
+        resultCacheMaxBytes = maxBytes;
+    }
+
+    /**
+     * Decode with ImageDecoder on API 28 and up (default), or always use BitmapFactory.
+     */
+    public static void setImageDecoderEnabled(boolean enabled) {
+        imageDecoderEnabled = enabled;
+    }
+
+    public static boolean isImageDecoderEnabled() {
+        return imageDecoderEnabled;
+    }
+
+    /**
+     * Let ImageDecoder decode into hardware bitmaps when the image needs no rotation. Saves heap
+     * on devices with a fast GPU readback, off by default.
+     */
+    public static void setHardwareBitmapsEnabled(boolean enabled) {
+        hardwareBitmapsEnabled = enabled;
+    }
+
+    public static boolean isHardwareBitmapsEnabled() {
+        return hardwareBitmapsEnabled;
+    }
+
+    /**
+     * Images with more pixels than this are decoded strip by strip, so memory use is bounded by
+     * the output size. Only applies to imports with a longestSide.
+     */
+    public static void setTiledDecodeThreshold(long pixels) {
+        tiledDecodeThreshold = pixels;
+    }
+
+    public static long getTiledDecodeThreshold() {
+        return tiledDecodeThreshold;
+    }
+
+    /**
+     * When positive, camera and single gallery imports first emit a preview of at most this many
+     * pixels on its longest side, followed by the final image on the same Observable<Uri>.
+     * Subscribers should treat each onNext as a better version of the same image. Batch and
+     * in-memory imports never emit previews. Off (0) by default.
+     */
+    public static void setPreviewSide(int previewSide) {
+        Capturandro.previewSide = previewSide;
+    }
+
+    public static int getPreviewSide() {
+        return previewSide;
+    }
+
+    /**
+     * Listener for per import timings, e.g. to find out whether slow imports wait for the
+     * provider, the decoder or the encoder. Applies to imports started after the call.
+     */
+    public static void setMetrics(CapturandroMetrics metrics) {
+        Capturandro.metrics = metrics != null ? metrics : CapturandroMetrics.NONE;
+    }
+
+    public static CapturandroMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Limits for the images and temporary files in the cache dir. The oldest files beyond the
+     * size limit, and files older than the age limit, are evicted in the background unless they
+     * are pinned through getCacheManager(). Has to be called before the first Capturandro is created.
+     */
+    public static void setCacheLimits(long maxBytes, long maxAgeMillis) {
+        cacheMaxBytes = maxBytes;
+        cacheMaxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Null until the first Capturandro is created.
+     */
+    public static CacheManager getCacheManager() {
+        return cacheManager;
+    }
+
+    /**
+     * Downloads gallery entries that point to an http or https url. Defaults to an
+     * HttpRemoteFetcher with a disk cache, created along with the first Capturandro.
+     */
+    public static void setRemoteFetcher(RemoteFetcher remoteFetcher) {
+        Capturandro.remoteFetcher = remoteFetcher;
+    }
+
+    public static RemoteFetcher getRemoteFetcher() {
+        return remoteFetcher;
+    }
+
+    static ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public static ImportStatistics getImportStatistics() {
+        return importStatistics;
+    }
+
     public static String getFileProviderAuthority() {
         return fileProviderAuthority;
     }
@@ -88,15 +365,22 @@ public class Capturandro {
      * onCameraImport will trigger with an observable that will return an Uri onNext once the image is captured.
      * <p>
      * When executing subscribe on the Obserable<Uri> image processing may take place (on a seperate thread).
-     * Image processing is done on a single background thread to prevent oom
+     * Image processing is done on a single background thread to prevent oom, unless enableParallelImports is used
      */
     @RequiresPermission(Manifest.permission.CAMERA)
     public void importImageFromCamera(final Activity activity, final int requestCode, final int longestSide) {
+        importImageFromCamera(activity, requestCode, longestSide, EncodingOptions.DEFAULT);
+    }
+
+    @RequiresPermission(Manifest.permission.CAMERA)
+    public void importImageFromCamera(final Activity activity, final int requestCode, final int longestSide, final EncodingOptions encodingOptions) {
         String filename = BitmapUtil.getUniqueFilename(activity);
-        state = new CameraState(longestSide, filename);
+        state = new CameraState(longestSide, filename, encodingOptions);
 
         Uri uri;
         File file = new File(filename);
+        // Recorded up front so the file is evicted even if the camera app never writes it
+        BitmapUtil.recordCacheFile(file);
         if (Build.VERSION.SDK_INT >= 24) {
             uri = FileProvider.getUriForFile(activity,
                     getFileProviderAuthority(),
@@ -123,10 +407,15 @@ public class Capturandro {
      * onGalleryImport will return one or more Obserable<Uri> once the images are selected.
      * <p>
      * When executing subscribe on the Obserable<Uri> image processing may take place (on a seperate thread).
-     * * Image processing is done on a single background thread to prevent oom
+     * * Image processing is done on a single background thread to prevent oom, unless enableParallelImports is used
      */
     public void importImageFromGallery(final Activity activity, final int requestCode, final int longestSide, final boolean multiselect) {
-        state = new GalleryState(longestSide, multiselect);
+        importImageFromGallery(activity, requestCode, longestSide, multiselect, EncodingOptions.DEFAULT);
+    }
+
+    public void importImageFromGallery(final Activity activity, final int requestCode, final int longestSide, final boolean multiselect,
+                                       final EncodingOptions encodingOptions) {
+        state = new GalleryState(longestSide, multiselect, encodingOptions);
         Intent intent;
         try {
             intent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
@@ -150,22 +439,36 @@ public class Capturandro {
         if (state != null && resultCode == Activity.RESULT_OK) {
             if (state instanceof CameraState) {
                 CameraState state = (CameraState) this.state;
-                ImportHandler importHandler = new ImportHandler(activity, state.longestSide);
-                callback.onImport(requestCode, importHandler.camera(scheduler, state.cameraFilename));
+                ImportHandler importHandler = new ImportHandler(applicationContext, state.longestSide, state.encodingOptions);
+                if (callback instanceof CapturandoEncodedCallback) {
+                    deliverEncodedImport(requestCode, importHandler, state.cameraFilename,
+                            importHandler.cameraEncoded(scheduler, state.cameraFilename));
+                } else {
+                    deliverImport(requestCode, importHandler, ImportJournal.Kind.CAMERA, state.cameraFilename,
+                            importHandler.camera(scheduler, state.cameraFilename));
+                }
             } else if (state instanceof GalleryState) {
                 GalleryState state = (GalleryState) this.state;
-                ImportHandler importHandler = new ImportHandler(activity, state.longestSide);
+                ImportHandler importHandler = new ImportHandler(applicationContext, state.longestSide, state.encodingOptions);
                 if (intent != null) {
                     ClipData clipData = intent.getClipData();
                     if (clipData != null && clipData.getItemCount() > 0) {
+                        if (callback instanceof CapturandoBatchCallback && !(callback instanceof CapturandoEncodedCallback)) {
+                            List<Uri> uris = new ArrayList<>(clipData.getItemCount());
+                            for (int i = 0; i < clipData.getItemCount(); i++) {
+                                uris.add(clipData.getItemAt(i).getUri());
+                            }
+                            deliverBatchImport(requestCode, importHandler, uris);
+                            return;
+                        }
                         for (int i = 0; i < clipData.getItemCount(); i++) {
                             Uri uri = clipData.getItemAt(i).getUri();
-                            callback.onImport(requestCode, importHandler.gallery(scheduler, uri));
+                            importGalleryImage(requestCode, importHandler, uri);
                         }
                         return;
                     }
                     Uri selectedImage = intent.getData();
-                    callback.onImport(requestCode, importHandler.gallery(scheduler, selectedImage));
+                    importGalleryImage(requestCode, importHandler, selectedImage);
                 } else {
                     throw new CapturandroException("intent is null on gallery import");
                 }
@@ -175,35 +478,109 @@ public class Capturandro {
     }
 
     public void importImageFromUri(Context context, Uri imageUri, int longestSide, int requestCode) {
-        ImportHandler importHandler = new ImportHandler(context, longestSide);
-        callback.onImport(requestCode, importHandler.gallery(scheduler, imageUri));
-    }
-
-    private void clearAllCachedBitmaps(Context context) {
-        final File cacheDir = BitmapUtil.getCacheDir(context);
-        if (cacheDir != null) {
-            deleteTask = Completable.create(emitter -> {
-                        File[] files = cacheDir.listFiles((dir, filename) ->
-                                filename.startsWith(TEMPFILE_PREFIX) && filename.endsWith(".jpg")
-                        );
-                        if (files != null) {
-                            for (File file : files) {
-                                if (emitter.isDisposed()) {
-                                    return;
-                                }
-                                try {
-                                    file.delete();
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                        emitter.onComplete();
-                    }
-            )
-                    .subscribeOn(Schedulers.io())
-                    .subscribe();
+        importImageFromUri(context, imageUri, longestSide, requestCode, EncodingOptions.DEFAULT);
+    }
+
+    public void importImageFromUri(Context context, Uri imageUri, int longestSide, int requestCode, EncodingOptions encodingOptions) {
+        ImportHandler importHandler = new ImportHandler(applicationContext, longestSide, encodingOptions);
+        importGalleryImage(requestCode, importHandler, imageUri);
+    }
+
+    /**
+     * Imports several images as one pipeline if the callback is a CapturandoBatchCallback,
+     * otherwise onImport is called once per image.
+     */
+    public void importImagesFromUris(Context context, List<Uri> imageUris, int longestSide, int requestCode) {
+        importImagesFromUris(context, imageUris, longestSide, requestCode, EncodingOptions.DEFAULT);
+    }
+
+    public void importImagesFromUris(Context context, List<Uri> imageUris, int longestSide, int requestCode, EncodingOptions encodingOptions) {
+        ImportHandler importHandler = new ImportHandler(applicationContext, longestSide, encodingOptions);
+        if (callback instanceof CapturandoBatchCallback && !(callback instanceof CapturandoEncodedCallback)) {
+            deliverBatchImport(requestCode, importHandler, imageUris);
+        } else {
+            for (Uri imageUri : imageUris) {
+                importGalleryImage(requestCode, importHandler, imageUri);
+            }
+        }
+    }
+
+    private void importGalleryImage(int requestCode, ImportHandler importHandler, Uri imageUri) {
+        if (callback instanceof CapturandoEncodedCallback) {
+            deliverEncodedImport(requestCode, importHandler, imageUri, importHandler.galleryEncoded(scheduler, imageUri));
+        } else {
+            deliverImport(requestCode, importHandler, ImportJournal.Kind.GALLERY, String.valueOf(imageUri),
+                    importHandler.gallery(scheduler, imageUri));
+        }
+    }
+
+    // The callbacks get the results through the ResultRegistry, so a recreated activity gets them too.
+    // Imports with a Uri result are journaled before they start, so they survive the process. Encoded
+    // images are not journaled, their bytes only live in memory.
+
+    private void deliverImport(int requestCode, ImportHandler importHandler, ImportJournal.Kind kind, String source,
+                               Observable<Uri> results) {
+        results = importJournal.track(importJournal.start(session, requestCode, kind, importHandler.getLongestSide(),
+                importHandler.getEncodingOptions(), Collections.singletonList(source)), results)
+                .observeOn(AndroidSchedulers.mainThread());
+        callback.onImport(requestCode, resultRegistry.observable(session, requestCode, ResultRegistry.Kind.IMPORT,
+                importHandler.resultKey(source), results));
+    }
+
+    private void deliverEncodedImport(int requestCode, ImportHandler importHandler, Object source, Observable<EncodedImage> results) {
+        ((CapturandoEncodedCallback) callback).onEncodedImport(requestCode, resultRegistry.observable(session, requestCode,
+                ResultRegistry.Kind.ENCODED_IMPORT, importHandler.resultKey(source), results.observeOn(AndroidSchedulers.mainThread())));
+    }
+
+    private void deliverBatchImport(int requestCode, ImportHandler importHandler, List<Uri> uris) {
+        List<String> sources = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            sources.add(String.valueOf(uri));
         }
+        Flowable<ImportResult> results = importJournal.track(importJournal.start(session, requestCode, ImportJournal.Kind.BATCH,
+                importHandler.getLongestSide(), importHandler.getEncodingOptions(), sources), importHandler.batch(scheduler, uris))
+                .observeOn(AndroidSchedulers.mainThread());
+        ((CapturandoBatchCallback) callback).onBatchImport(requestCode, resultRegistry.flowable(session, requestCode,
+                importHandler.resultKey(uris), results));
+    }
+
+    /**
+     * Registers a job journaled by an earlier process and hands it to the callback, importing only
+     * what it did not finish.
+     */
+    private void resume(ImportJournal.Job job) {
+        ImportHandler importHandler = new ImportHandler(applicationContext, job.getLongestSide(), job.getOptions());
+        int requestCode = job.getRequestCode();
+        List<String> sources = job.getSources();
+        if (job.getKind() == ImportJournal.Kind.BATCH) {
+            List<Uri> uris = new ArrayList<>(sources.size());
+            Map<Integer, Uri> imported = new HashMap<>();
+            for (int i = 0; i < sources.size(); i++) {
+                uris.add(Uri.parse(sources.get(i)));
+                Uri output = job.getOutput(i);
+                if (output != null) {
+                    imported.put(i, output);
+                }
+            }
+            Flowable<ImportResult> results = resultRegistry.flowable(session, requestCode, importHandler.resultKey(uris),
+                    importJournal.track(job, importHandler.batch(scheduler, uris, imported)).observeOn(AndroidSchedulers.mainThread()));
+            if (callback instanceof CapturandoBatchCallback) {
+                ((CapturandoBatchCallback) callback).onBatchImport(requestCode, results);
+            }
+            return;
+        }
+        String source = sources.get(0);
+        Uri output = job.getOutput(0);
+        Observable<Uri> results;
+        if (output != null) {
+            results = Observable.just(output);
+        } else if (job.getKind() == ImportJournal.Kind.CAMERA) {
+            results = importHandler.camera(scheduler, source);
+        } else {
+            results = importHandler.gallery(scheduler, Uri.parse(source));
+        }
+        callback.onImport(requestCode, resultRegistry.observable(session, requestCode, ResultRegistry.Kind.IMPORT,
+                importHandler.resultKey(source), importJournal.track(job, results).observeOn(AndroidSchedulers.mainThread())));
     }
 
     private static abstract class CapturandoState implements Parcelable {
@@ -218,21 +595,25 @@ public class Capturandro {
 
         private final int longestSide;
         private final String cameraFilename;
+        private final EncodingOptions encodingOptions;
 
-        public CameraState(int longestSide, String cameraFilename) {
+        public CameraState(int longestSide, String cameraFilename, EncodingOptions encodingOptions) {
             this.longestSide = longestSide;
             this.cameraFilename = cameraFilename;
+            this.encodingOptions = encodingOptions;
         }
 
         public CameraState(Parcel in) {
             longestSide = in.readInt();
             cameraFilename = in.readString();
+            encodingOptions = in.readParcelable(EncodingOptions.class.getClassLoader());
         }
 
         @Override
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(longestSide);
             dest.writeString(cameraFilename);
+            dest.writeParcelable(encodingOptions, flags);
         }
 
 
@@ -253,21 +634,25 @@ public class Capturandro {
 
         private final int longestSide;
         private final boolean multiselect;
+        private final EncodingOptions encodingOptions;
 
         public GalleryState(Parcel in) {
             longestSide = in.readInt();
             multiselect = in.readInt() == 1;
+            encodingOptions = in.readParcelable(EncodingOptions.class.getClassLoader());
         }
 
-        public GalleryState(int longestSide, boolean multiselect) {
+        public GalleryState(int longestSide, boolean multiselect, EncodingOptions encodingOptions) {
             this.longestSide = longestSide;
             this.multiselect = multiselect;
+            this.encodingOptions = encodingOptions;
         }
 
         @Override
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(longestSide);
             dest.writeInt(multiselect ? 1 : 0);
+            dest.writeParcelable(encodingOptions, flags);
         }
 
         public static final Parcelable.Creator<GalleryState> CREATOR =
@@ -285,4 +670,22 @@ public class Capturandro {
     public interface CapturandoCallback {
         void onImport(int requestCode, Observable<Uri> observable);
     }
+
+    /**
+     * Callbacks implementing this receive multiselect gallery imports as one ordered stream
+     * instead of one onImport call per image.
+     */
+    public interface CapturandoBatchCallback extends CapturandoCallback {
+        void onBatchImport(int requestCode, Flowable<ImportResult> results);
+    }
+
+    /**
+     * Callbacks implementing this receive the encoded images in memory through onEncodedImport
+     * instead of file Uris through onImport, which saves writing and reading back each image when
+     * it is uploaded right away. Multiselect imports arrive one call per image, also when the
+     * callback is a CapturandoBatchCallback.
+     */
+    public interface CapturandoEncodedCallback extends CapturandoCallback {
+        void onEncodedImport(int requestCode, Observable<EncodedImage> observable);
+    }
 }
@@ -0,0 +1,15 @@
+package no.finntech.capturandro;
+
+/*
+ * Receives per import timings, see Capturandro.setMetrics(). Called on the import scheduler once
+ * per import, including failed and cancelled ones, so implementations should be quick.
+ */
+public interface CapturandroMetrics {
+    /**
+     * Default, imports are not traced at all.
+     */
+    CapturandroMetrics NONE = trace -> {
+    };
+
+    void onImportFinished(ImportTrace trace);
+}
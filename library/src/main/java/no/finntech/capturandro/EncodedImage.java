@@ -0,0 +1,84 @@
+package no.finntech.capturandro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * A processed image kept in memory, see Capturandro.CapturandoEncodedCallback.
+ */
+public class EncodedImage {
+    private final byte[] data;
+    private final int length;
+    private final EncodingOptions.Format format;
+    private final int width;
+    private final int height;
+
+    EncodedImage(byte[] data, int length, EncodingOptions.Format format, int width, int height) {
+        this.data = data;
+        this.length = length;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Read only view of the encoded bytes, without copying them.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data, 0, length).asReadOnlyBuffer();
+    }
+
+    public InputStream openStream() {
+        return new ByteArrayInputStream(data, 0, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, 0, length);
+    }
+
+    /**
+     * Size of the encoded image in bytes.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public EncodingOptions.Format getFormat() {
+        return format;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodedImage{" +
+                "length=" + length +
+                ", format=" + format +
+                ", width=" + width +
+                ", height=" + height +
+                '}';
+    }
+
+    /**
+     * Hands out its buffer so the encoded bytes are not copied once more.
+     */
+    static class Buffer extends ByteArrayOutputStream {
+        Buffer(int size) {
+            super(size);
+        }
+
+        EncodedImage toEncodedImage(EncodingOptions.Format format, int width, int height) {
+            return new EncodedImage(buf, count, format, width, height);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package no.finntech.capturandro;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/*
+ * How imported images are encoded: format, quality and an optional upper bound on the encoded size.
+ */
+public class EncodingOptions implements Parcelable {
+    public static final EncodingOptions DEFAULT =
+            new EncodingOptions(Format.JPEG, Capturandro.DEFAULT_STORED_IMAGE_COMPRESSION_PERCENT, 0);
+
+    public enum Format {
+        JPEG(".jpg"),
+        WEBP_LOSSY(".webp"),
+        WEBP_LOSSLESS(".webp");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final Format format;
+    private final int quality;
+    private final long maxBytes;
+    private final boolean passthrough;
+
+    /**
+     * @param quality  0-100, for WEBP_LOSSLESS it trades encoding speed for size
+     * @param maxBytes if positive, the quality is lowered as far as needed to fit the encoded
+     *                 image in this many bytes. Not supported for WEBP_LOSSLESS.
+     * @param passthrough if true, a JPEG source that already fits longestSide and maxBytes is
+     *                    returned as is instead of being decoded and encoded again. Rotated
+     *                    sources keep their EXIF orientation tag instead of being rotated, and
+     *                    all other metadata is kept as well, so only use this if whatever
+     *                    consumes the images handles that. Only applies to JPEG.
+     */
+    public EncodingOptions(Format format, int quality, long maxBytes, boolean passthrough) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be between 0 and 100, was " + quality);
+        }
+        this.format = format;
+        this.quality = quality;
+        this.maxBytes = maxBytes;
+        this.passthrough = passthrough;
+    }
+
+    public EncodingOptions(Format format, int quality, long maxBytes) {
+        this(format, quality, maxBytes, false);
+    }
+
+    public EncodingOptions(Format format, int quality) {
+        this(format, quality, 0);
+    }
+
+    private EncodingOptions(Parcel in) {
+        format = Format.values()[in.readInt()];
+        quality = in.readInt();
+        maxBytes = in.readLong();
+        passthrough = in.readInt() != 0;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public boolean isPassthrough() {
+        return passthrough;
+    }
+
+    boolean hasMaxBytes() {
+        return maxBytes > 0 && format != Format.WEBP_LOSSLESS;
+    }
+
+    String getExtension() {
+        return format.extension;
+    }
+
+    @SuppressWarnings("deprecation")
+    Bitmap.CompressFormat getCompressFormat() {
+        switch (format) {
+            case WEBP_LOSSY:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+            case WEBP_LOSSLESS:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.WEBP;
+            default:
+                return Bitmap.CompressFormat.JPEG;
+        }
+    }
+
+    /**
+     * Quality passed to Bitmap.compress. Before API 30 plain WEBP is lossless only at quality 100.
+     */
+    int getCompressQuality(int quality) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            if (format == Format.WEBP_LOSSLESS) {
+                return 100;
+            } else if (format == Format.WEBP_LOSSY) {
+                return Math.min(quality, 99);
+            }
+        }
+        return quality;
+    }
+
+    /**
+     * Parses the result of toString(), for options stored in the ImportJournal.
+     */
+    static EncodingOptions fromString(String value) {
+        String[] fields = value.split("\\|");
+        if (fields.length < 3) {
+            throw new IllegalArgumentException("Not encoding options: " + value);
+        }
+        return new EncodingOptions(Format.valueOf(fields[0]), Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                fields.length > 3 && "passthrough".equals(fields[3]));
+    }
+
+    @Override
+    public String toString() {
+        // Part of the ResultCache key, unchanged for options without passthrough
+        return format + "|" + quality + "|" + maxBytes + (passthrough ? "|passthrough" : "");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EncodingOptions)) {
+            return false;
+        }
+        EncodingOptions that = (EncodingOptions) o;
+        return format == that.format && quality == that.quality && maxBytes == that.maxBytes
+                && passthrough == that.passthrough;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = format.hashCode();
+        result = 31 * result + quality;
+        result = 31 * result + (int) (maxBytes ^ (maxBytes >>> 32));
+        result = 31 * result + (passthrough ? 1 : 0);
+        return result;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(format.ordinal());
+        dest.writeInt(quality);
+        dest.writeLong(maxBytes);
+        dest.writeInt(passthrough ? 1 : 0);
+    }
+
+    public static final Parcelable.Creator<EncodingOptions> CREATOR =
+            new Parcelable.Creator<EncodingOptions>() {
+                public EncodingOptions createFromParcel(Parcel in) {
+                    return new EncodingOptions(in);
+                }
+
+                public EncodingOptions[] newArray(int size) {
+                    return new EncodingOptions[size];
+                }
+            };
+}
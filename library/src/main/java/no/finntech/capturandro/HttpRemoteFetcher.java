@@ -0,0 +1,312 @@
+package no.finntech.capturandro;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * RemoteFetcher on HttpURLConnection with bounded timeouts. Connections are kept alive and reused
+ * by the platform once a response has been read to the end. Responses with an ETag or
+ * Last-Modified header are stored in a small disk cache while they are read, and revalidated
+ * with a conditional request the next time, so an unchanged image is not downloaded again.
+ */
+public class HttpRemoteFetcher implements RemoteFetcher {
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30 * 1000;
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+    static final String DIRECTORY_NAME = Capturandro.TEMPFILE_PREFIX + "http";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String META_SUFFIX = ".meta";
+
+    private final File directory;
+    private final long maxCacheBytes;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    /**
+     * @param directory where responses are cached, null to not cache them
+     */
+    public HttpRemoteFetcher(File directory, long maxCacheBytes, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.directory = directory;
+        this.maxCacheBytes = maxCacheBytes;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public HttpRemoteFetcher(File directory, long maxCacheBytes) {
+        this(directory, maxCacheBytes, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Fetcher with the default timeouts and cache size, caching below the cache dir Capturandro uses.
+     */
+    static HttpRemoteFetcher withDefaultCache(File cacheDir) {
+        return new HttpRemoteFetcher(new File(cacheDir, DIRECTORY_NAME), DEFAULT_CACHE_BYTES);
+    }
+
+    @Override
+    public InputStream open(String url) throws IOException {
+        String key = directory != null && maxCacheBytes > 0 ? key(url) : null;
+        File body = key != null ? new File(directory, key) : null;
+        String[] validators = key != null && body.exists() ? readMeta(new File(directory, key + META_SUFFIX)) : null;
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        connection.setInstanceFollowRedirects(true);
+        if (validators != null) {
+            if (validators[0] != null) {
+                connection.setRequestProperty("If-None-Match", validators[0]);
+            }
+            if (validators[1] != null) {
+                connection.setRequestProperty("If-Modified-Since", validators[1]);
+            }
+        }
+        ImportStatistics statistics = Capturandro.getImportStatistics();
+        int responseCode;
+        try {
+            responseCode = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+        if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+            // Releases the connection for reuse, a 304 has no body
+            connection.getInputStream().close();
+            statistics.addRemoteFetch(0, true);
+            body.setLastModified(System.currentTimeMillis());
+            return new FileInputStream(body);
+        }
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            connection.disconnect();
+            throw new IOException("Unexpected response " + responseCode + " for " + url);
+        }
+        InputStream in = new CountingInputStream(connection.getInputStream(), statistics);
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (key == null || (etag == null && lastModified == null)
+                || contentLength(connection) > maxCacheBytes
+                || (!directory.isDirectory() && !directory.mkdirs())) {
+            return in;
+        }
+        return new CachingInputStream(in, key, etag, lastModified);
+    }
+
+    /**
+     * Content-Length of the response, -1 if unknown. getContentLengthLong() needs API 24.
+     */
+    private static long contentLength(HttpURLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                // Treated as unknown
+            }
+        }
+        return -1;
+    }
+
+    static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * ETag and Last-Modified of a cached response, null if there is no usable metadata.
+     */
+    private static String[] readMeta(File meta) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(meta), UTF_8));
+            try {
+                String etag = reader.readLine();
+                String lastModified = reader.readLine();
+                if (etag == null || lastModified == null) {
+                    return null;
+                }
+                return new String[]{etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified};
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void commit(File temp, String key, String etag, String lastModified) throws IOException {
+        File meta = new File(directory, key + META_SUFFIX);
+        File metaTemp = BitmapUtil.getTempFile(meta);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(metaTemp), UTF_8);
+        try {
+            writer.write((etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "") + "\n");
+        } finally {
+            writer.close();
+        }
+        // Body first, a body without metadata is never revalidated and gets replaced
+        BitmapUtil.commitTempFile(temp, new File(directory, key));
+        BitmapUtil.commitTempFile(metaTemp, meta);
+        trim();
+    }
+
+    /**
+     * Deletes the least recently used responses beyond the cache size. The directory holds few
+     * entries, so listing it is cheap.
+     */
+    private synchronized void trim() {
+        File[] files = directory.listFiles((dir, name) -> !name.endsWith(META_SUFFIX) && !name.endsWith(BitmapUtil.TEMPFILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxCacheBytes) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (size <= maxCacheBytes) {
+                break;
+            }
+            size -= file.length();
+            new File(directory, file.getName() + META_SUFFIX).delete();
+            file.delete();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final ImportStatistics statistics;
+        private long count;
+        private boolean closed;
+
+        CountingInputStream(InputStream in, ImportStatistics statistics) {
+            super(in);
+            this.statistics = statistics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                statistics.addRemoteFetch(count, false);
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Writes the response to the cache as it is read, and commits it once it was read to the end.
+     */
+    private class CachingInputStream extends FilterInputStream {
+        private final String key;
+        private final String etag;
+        private final String lastModified;
+        private final File temp;
+        private OutputStream out;
+        // Set once caching failed or the stream was closed, the body is incomplete from then on
+        private boolean abandoned;
+
+        CachingInputStream(InputStream in, String key, String etag, String lastModified) {
+            super(in);
+            this.key = key;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.temp = BitmapUtil.getTempFile(new File(directory, key + "-" + Thread.currentThread().getId()));
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int n = read(single, 0, 1);
+            return n == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (abandoned) {
+                return n;
+            }
+            try {
+                if (n > 0) {
+                    if (out == null) {
+                        out = new FileOutputStream(temp);
+                    }
+                    out.write(buffer, offset, n);
+                } else if (n == -1 && out != null) {
+                    out.close();
+                    out = null;
+                    commit(temp, key, etag, lastModified);
+                }
+            } catch (IOException e) {
+                // Caching is best effort, the import goes on
+                Log.i("Capturandro", "Unable to cache response", e);
+                abandon();
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abandon();
+            super.close();
+        }
+
+        private void abandon() {
+            abandoned = true;
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                out = null;
+                temp.delete();
+            }
+        }
+    }
+}
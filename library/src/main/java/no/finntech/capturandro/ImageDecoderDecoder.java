@@ -0,0 +1,72 @@
+package no.finntech.capturandro;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageDecoder;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.ParcelFileDescriptor;
+import android.util.Size;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Decodes with ImageDecoder, which scales straight to the target size while decoding and handles
+ * HEIF. The source is memory mapped, so the descriptor already opened for the import is reused.
+ */
+@RequiresApi(Build.VERSION_CODES.P)
+class ImageDecoderDecoder implements BitmapDecoder {
+    static final ImageDecoderDecoder INSTANCE = new ImageDecoderDecoder();
+
+    private ImageDecoderDecoder() {
+    }
+
+    @Override
+    public boolean appliesOrientation() {
+        // ImageDecoder rotates by the EXIF orientation itself, info.getSize() is the rotated size
+        return true;
+    }
+
+    @Override
+    public long estimateRequiredBytes(int width, int height, int longestSide) {
+        int sampleSize = BitmapUtil.calculateInSampleSize(width, height, longestSide);
+        return BitmapUtil.estimateRequiredBytes(width, height, sampleSize, longestSide);
+    }
+
+    @Override
+    public Bitmap decode(FileDescriptor fd, int width, int height, int longestSide, boolean softwareRequired,
+                         CancellationSignal signal) throws IOException {
+        ImageDecoder.Source source = ImageDecoder.createSource(map(fd));
+        final boolean hardware = !softwareRequired && Capturandro.isHardwareBitmapsEnabled();
+        return ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+            Size size = info.getSize();
+            float scale = BitmapUtil.calculateScale(size.getWidth(), size.getHeight(), longestSide);
+            if (scale < 1f) {
+                decoder.setTargetSize(
+                        Math.max(1, Math.round(size.getWidth() * scale)),
+                        Math.max(1, Math.round(size.getHeight() * scale))
+                );
+            }
+            if (hardware) {
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_HARDWARE);
+            } else {
+                // Mutable software bitmaps can go back to the BitmapPool
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                decoder.setMutableRequired(true);
+            }
+        });
+    }
+
+    private static ByteBuffer map(FileDescriptor fd) throws IOException {
+        // The mapping stays valid after the duplicate descriptor is closed
+        try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.dup(fd))) {
+            FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+}
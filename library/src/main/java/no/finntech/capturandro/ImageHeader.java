@@ -0,0 +1,89 @@
+package no.finntech.capturandro;
+
+import android.util.Log;
+
+import androidx.exifinterface.media.ExifInterface;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/*
+ * Orientation and dimensions of an image, read from its header on the same descriptor that is
+ * decoded afterwards so the source is only opened once per import.
+ */
+class ImageHeader {
+    private final int width;
+    private final int height;
+    private final int orientation;
+    private final boolean jpeg;
+
+    ImageHeader(int width, int height, int orientation) {
+        this(width, height, orientation, false);
+    }
+
+    ImageHeader(int width, int height, int orientation, boolean jpeg) {
+        this.width = width;
+        this.height = height;
+        this.orientation = orientation;
+        this.jpeg = jpeg;
+    }
+
+    /**
+     * Returns null if the header could not be parsed. JPEGs go through JpegHeaderParser, other
+     * formats and JPEGs it does not understand fall back to ExifInterface.
+     */
+    static ImageHeader read(FileDescriptor fd) {
+        try {
+            ImageHeader header = JpegHeaderParser.parse(fd);
+            if (header != null) {
+                return header;
+            }
+        } catch (IOException e) {
+            Log.i("Capturandro", "Unable to parse jpeg header", e);
+        }
+        try {
+            ExifInterface exif = new ExifInterface(fd);
+            return new ImageHeader(
+                    exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, 0),
+                    exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, 0),
+                    OrientationUtil.getOrientation(exif)
+            );
+        } catch (IOException e) {
+            Log.i("Capturandro", "Unable to read image header", e);
+            return null;
+        }
+    }
+
+    /**
+     * Width in pixels, 0 if unknown.
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Height in pixels, 0 if unknown.
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Rotation in degrees.
+     */
+    int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Whether JpegHeaderParser read this header, so the image is a JPEG whose own EXIF tag is
+     * the source of the orientation.
+     */
+    boolean isJpeg() {
+        return jpeg;
+    }
+
+    boolean hasDimensions() {
+        return width > 0 && height > 0;
+    }
+}
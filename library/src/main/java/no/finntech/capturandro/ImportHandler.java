@@ -3,53 +3,273 @@ package no.finntech.capturandro;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
+import io.reactivex.BackpressureStrategy;
+import io.reactivex.Flowable;
 import io.reactivex.Observable;
+import io.reactivex.ObservableEmitter;
 import io.reactivex.ObservableOnSubscribe;
 import io.reactivex.Scheduler;
-import io.reactivex.android.schedulers.AndroidSchedulers;
-
-import static no.finntech.capturandro.OrientationUtil.getOrientation;
-import static no.finntech.capturandro.OrientationUtil.readExifFromFile;
+import io.reactivex.schedulers.Schedulers;
 
+/*
+ * Builds the import pipelines. Results are emitted on the import scheduler, Capturandro moves
+ * them to the main thread once they are journaled.
+ */
 class ImportHandler {
     private final static String[] FILE_PATH_COLUMNS = {
             MediaStore.MediaColumns.DATA,
             MediaStore.MediaColumns.DISPLAY_NAME
     };
 
+    private static final EncodingOptions PREVIEW_ENCODING = new EncodingOptions(EncodingOptions.Format.JPEG, 60);
+    private static final SingleFlight inFlight = new SingleFlight();
+
     private Context context;
     private int longestSide;
+    private EncodingOptions encodingOptions;
 
     ImportHandler(Context context, int longestSide) {
+        this(context, longestSide, EncodingOptions.DEFAULT);
+    }
+
+    ImportHandler(Context context, int longestSide, EncodingOptions encodingOptions) {
         this.context = context;
         this.longestSide = longestSide;
+        this.encodingOptions = encodingOptions;
+    }
+
+    int getLongestSide() {
+        return longestSide;
+    }
+
+    EncodingOptions getEncodingOptions() {
+        return encodingOptions;
     }
 
     Observable<Uri> camera(Scheduler scheduler, final String cameraFilename) {
-        return Observable.create((ObservableOnSubscribe<Uri>) emitter -> {
+        return camera(scheduler, cameraFilename, (fd, header, emitter, signal, trace) -> {
+            File file;
+            if (BitmapUtil.canPassThrough(fd, header, longestSide, encodingOptions)) {
+                // The camera file is already in the cache dir and recorded, hand it out as is
+                file = new File(cameraFilename);
+                Capturandro.getImportStatistics().addPassthrough(file.length());
+            } else {
+                emitPreview(fd, header, emitter, signal, trace);
+                file = BitmapUtil.getProcessedImageFile(context, fd, header, longestSide, encodingOptions, signal, trace);
+            }
+            trace.setOutputBytes(file.length());
+            emitter.onNext(BitmapUtil.getUriForFile(context, file));
+        });
+    }
+
+    /**
+     * Like camera, but emits the encoded image from memory without writing it to the cache dir.
+     */
+    Observable<EncodedImage> cameraEncoded(Scheduler scheduler, final String cameraFilename) {
+        return camera(scheduler, cameraFilename, (fd, header, emitter, signal, trace) -> {
+            EncodedImage image = BitmapUtil.canPassThrough(fd, header, longestSide, encodingOptions)
+                    ? BitmapUtil.readPassthroughImage(fd, header, signal, trace)
+                    : BitmapUtil.getEncodedImage(fd, header, longestSide, encodingOptions, signal, trace);
+            trace.setOutputBytes(image.getLength());
+            emitter.onNext(image);
+        });
+    }
+
+    private interface HeaderProcessor<T> {
+        void process(FileDescriptor fd, ImageHeader header, ObservableEmitter<T> emitter, CancellationSignal signal,
+                     ImportTrace trace) throws IOException;
+    }
+
+    private <T> Observable<T> camera(Scheduler scheduler, final String cameraFilename, final HeaderProcessor<T> processor) {
+        return traced(scheduler, null, trace -> Observable.create((ObservableOnSubscribe<T>) emitter -> {
+                    trace.started();
                     if (cameraFilename != null) {
-                        File file = new File(cameraFilename);
-                        Uri bitmapUri = BitmapUtil.getProcessedImage(
-                                context, file, longestSide, getOrientation(readExifFromFile(file))
-                        );
-                        emitter.onNext(bitmapUri);
-                        emitter.onComplete();
+                        CancellationSignal signal = cancelOnDispose(emitter);
+                        long start = System.nanoTime();
+                        FileInputStream imageStream = new FileInputStream(cameraFilename);
+                        try {
+                            FileDescriptor fd = imageStream.getFD();
+                            trace.addOpen(System.nanoTime() - start, BitmapUtil.size(fd));
+                            // Now that the camera app has written it
+                            BitmapUtil.recordCacheFile(new File(cameraFilename));
+                            start = System.nanoTime();
+                            ImageHeader header = ImageHeader.read(fd);
+                            if (header == null) {
+                                header = new ImageHeader(0, 0, 0);
+                            }
+                            trace.addHeader(System.nanoTime() - start);
+                            processor.process(fd, header, emitter, signal, trace);
+                            emitter.onComplete();
+                        } catch (OperationCanceledException e) {
+                            // Disposed, nobody is listening
+                        } finally {
+                            imageStream.close();
+                            if (signal.isCanceled()) {
+                                trace.finish(true, null);
+                            }
+                        }
                     } else {
                         emitter.onError(new CapturandroException("Could not get image from camera"));
                     }
                 }
-        ).subscribeOn(scheduler).observeOn(AndroidSchedulers.mainThread());
+        ));
+    }
+
+    private interface Importer<T> {
+        Observable<T> create(ImportTrace trace);
+    }
+
+    /**
+     * Subscribes the import on the scheduler. With a metrics listener set each subscription gets
+     * its own ImportTrace, with the queue wait measured from subscribing until the import starts.
+     * Without one nothing extra is allocated.
+     */
+    private static <T> Observable<T> traced(final Scheduler scheduler, final Uri source, final Importer<T> importer) {
+        if (Capturandro.getMetrics() == CapturandroMetrics.NONE) {
+            return importer.create(ImportTrace.DISABLED).subscribeOn(scheduler);
+        }
+        return Observable.defer(() -> {
+            ImportTrace trace = ImportTrace.create(source);
+            trace.subscribed();
+            return importer.create(trace)
+                    .doOnComplete(() -> trace.finish(false, null))
+                    .doOnError(error -> trace.finish(false, error))
+                    .subscribeOn(scheduler);
+        });
     }
 
     Observable<Uri> gallery(Scheduler scheduler, final Uri selectedImage) {
-        return Observable.create((ObservableOnSubscribe<Uri>) emitter -> {
+        return importUri(scheduler, selectedImage, true, CopyFailure.EMPTY_URI);
+    }
+
+    /**
+     * Like gallery, but emits the encoded image from memory without writing it to the cache dir.
+     */
+    Observable<EncodedImage> galleryEncoded(Scheduler scheduler, final Uri selectedImage) {
+        return inFlight.<EncodedImage>share(inFlightKey("encoded", selectedImage), () ->
+                traced(scheduler, selectedImage, trace -> importUri(selectedImage, this::readCachedImage,
+                        (uri, fd, cacheKey, emitter, signal) -> emitter.onNext(encodeDescriptor(uri, fd, signal, trace)), null, trace)));
+    }
+
+    /**
+     * Imports all images as one pipeline. Results are emitted in selection order, while up to
+     * one image per core is in flight on the scheduler. A failing image is reported as a failed
+     * ImportResult and does not end the batch.
+     */
+    Flowable<ImportResult> batch(Scheduler scheduler, final List<Uri> selectedImages) {
+        return batch(scheduler, selectedImages, Collections.emptyMap());
+    }
+
+    /**
+     * @param imported outputs by index of images imported before, emitted without importing them again
+     */
+    Flowable<ImportResult> batch(Scheduler scheduler, final List<Uri> selectedImages, final Map<Integer, Uri> imported) {
+        int maxConcurrency = Math.max(1, Runtime.getRuntime().availableProcessors());
+        return Flowable.range(0, selectedImages.size())
+                .concatMapEager(index -> {
+                    Uri selectedImage = selectedImages.get(index);
+                    Uri output = imported.get(index);
+                    if (output != null) {
+                        return Flowable.just(ImportResult.success(index, selectedImage, output));
+                    }
+                    return importUri(scheduler, selectedImage, false, CopyFailure.ERROR)
+                            .map(uri -> ImportResult.success(index, selectedImage, uri))
+                            .onErrorReturn(throwable -> ImportResult.failure(index, selectedImage, throwable))
+                            .toFlowable(BackpressureStrategy.BUFFER);
+                }, maxConcurrency, 1);
+    }
+
+    /**
+     * What an import emits when a non seekable source could not be copied.
+     */
+    private enum CopyFailure {
+        // Single imports have always emitted Uri.EMPTY
+        EMPTY_URI,
+        // Batch items fail with the error, so the ImportResult says what went wrong
+        ERROR
+    }
+
+    /**
+     * @param preview whether a preview may be emitted ahead of the result
+     */
+    private Observable<Uri> importUri(Scheduler scheduler, final Uri selectedImage, final boolean preview, final CopyFailure copyFailure) {
+        final Uri copyFailedResult = copyFailure == CopyFailure.EMPTY_URI ? Uri.EMPTY : null;
+        String mode = (preview ? "preview" : "file") + "|" + copyFailure;
+        return inFlight.share(inFlightKey(mode, selectedImage), () ->
+                traced(scheduler, selectedImage, trace -> importUri(selectedImage, this::copyCachedFile,
+                        (uri, fd, cacheKey, emitter, signal) -> processDescriptor(uri, fd, cacheKey, emitter, signal, trace, preview),
+                        copyFailedResult, trace)));
+    }
+
+    /**
+     * Imports with the same key emit the same results, so concurrent ones can share the work.
+     */
+    private String inFlightKey(String mode, Uri selectedImage) {
+        return mode + "|" + resultKey(selectedImage);
+    }
+
+    /**
+     * Identifies what importing the source with this handler results in.
+     */
+    String resultKey(Object source) {
+        return source + "|" + longestSide + "|" + encodingOptions;
+    }
+
+    private interface CacheLookup<T> {
+        /**
+         * Returns the earlier result stored under the key, or null if there is none.
+         */
+        T get(String cacheKey, ImportTrace trace) throws IOException;
+    }
+
+    private interface DescriptorProcessor<T> {
+        /**
+         * @param cacheKey key to store the result under, null if it should not be cached
+         */
+        void process(Uri selectedImage, FileDescriptor fd, String cacheKey, ObservableEmitter<T> emitter, CancellationSignal signal)
+                throws IOException;
+    }
+
+    /**
+     * Cancels the returned signal when the subscriber disposes. The import checks it between
+     * stages and stops early, so a disposed import frees the scheduler for the next one.
+     */
+    private static CancellationSignal cancelOnDispose(ObservableEmitter<?> emitter) {
+        CancellationSignal signal = new CancellationSignal();
+        emitter.setCancellable(signal::cancel);
+        return signal;
+    }
+
+    /**
+     * The ResultCache is asked before the source is opened, so a hit does not copy a non seekable
+     * source first.
+     *
+     * @param copyFailedResult emitted if a non seekable source could not be copied, an error is
+     *                         emitted instead if it is null
+     */
+    private <T> Observable<T> importUri(final Uri selectedImage, final CacheLookup<T> cacheLookup, final DescriptorProcessor<T> processor,
+                                        final T copyFailedResult, final ImportTrace trace) {
+        return Observable.create((ObservableOnSubscribe<T>) emitter -> {
+            trace.started();
             if (selectedImage == null) {
                 emitter.onError(new CapturandroException("Could not get image - it's null"));
                 return;
@@ -58,28 +278,265 @@ class ImportHandler {
                 emitter.onError(new CapturandroException("User selected video"));
                 return;
             }
+            CancellationSignal signal = cancelOnDispose(emitter);
             try {
-                int orientation = getOrientation(selectedImage, context.getContentResolver());
-                InputStream inputStream = context.getContentResolver().openInputStream(selectedImage);
-                if (inputStream == null) {
-                    inputStream = openRemoteImage(selectedImage);
+                String cacheKey = getCacheKey(selectedImage);
+                if (cacheKey != null) {
+                    T cached = cacheLookup.get(cacheKey, trace);
+                    if (cached != null) {
+                        emitter.onNext(cached);
+                        emitter.onComplete();
+                        return;
+                    }
                 }
-                if (inputStream == null) {
-                    emitter.onError(new CapturandroException("Could not resolve url " + selectedImage));
-                    return;
+                // The source is opened once, header and pixels are read from the same descriptor
+                File tempFile = null;
+                long start = System.nanoTime();
+                ParcelFileDescriptor pfd = openSeekableDescriptor(selectedImage, signal);
+                if (pfd != null) {
+                    long size = BitmapUtil.size(pfd.getFileDescriptor());
+                    Capturandro.getImportStatistics().addStreamed(size);
+                    trace.addOpen(System.nanoTime() - start, size);
+                } else {
+                    InputStream inputStream = context.getContentResolver().openInputStream(selectedImage);
+                    if (inputStream == null) {
+                        inputStream = openRemoteImage(selectedImage);
+                    }
+                    if (inputStream == null) {
+                        emitter.onError(new CapturandroException("Could not resolve url " + selectedImage));
+                        return;
+                    }
+                    // Closing the stream is the only way to abort a blocked read. Dispose usually
+                    // happens on the main thread and closing a remote stream may touch the network.
+                    final InputStream stream = inputStream;
+                    signal.setOnCancelListener(() -> Schedulers.io().scheduleDirect(() -> closeQuietly(stream)));
+                    try {
+                        tempFile = BitmapUtil.copyToCacheFile(context, inputStream, signal);
+                        pfd = ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY);
+                        trace.addOpen(System.nanoTime() - start, tempFile.length());
+                    } catch (IOException e) {
+                        if (tempFile != null) {
+                            BitmapUtil.deleteCacheFile(tempFile);
+                        }
+                        if (signal.isCanceled()) {
+                            return;
+                        }
+                        if (copyFailedResult == null) {
+                            emitter.onError(new CapturandroException(e));
+                            return;
+                        }
+                        emitter.onNext(copyFailedResult);
+                        emitter.onComplete();
+                        return;
+                    } finally {
+                        signal.setOnCancelListener(null);
+                        inputStream.close();
+                    }
                 }
                 try {
-                    Uri uri = BitmapUtil.getProcessedImage(context, inputStream, longestSide, orientation);
-                    emitter.onNext(uri);
+                    processor.process(selectedImage, pfd.getFileDescriptor(), cacheKey, emitter, signal);
                     emitter.onComplete();
                 } finally {
-                    inputStream.close();
+                    pfd.close();
+                    if (tempFile != null) {
+                        BitmapUtil.deleteCacheFile(tempFile);
+                    }
                 }
+            } catch (OperationCanceledException e) {
+                // Disposed, nobody is listening
             } catch (IOException e) {
-                emitter.onError(new CapturandroException(e));
+                if (!signal.isCanceled()) {
+                    emitter.onError(new CapturandroException(e));
+                }
+            } finally {
+                if (signal.isCanceled()) {
+                    trace.finish(true, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Hands out a cache hit as a new file in the cache dir, linked where possible, so eviction
+     * from the ResultCache cannot delete it while the caller uses it and pins apply to it.
+     */
+    private Uri copyCachedFile(String cacheKey, ImportTrace trace) {
+        File file = new File(BitmapUtil.getUniqueFilename(context, encodingOptions.getExtension()));
+        if (!Capturandro.getResultCache().copyTo(cacheKey, file)) {
+            return null;
+        }
+        BitmapUtil.recordCacheFile(file);
+        trace.setCacheHit();
+        trace.setOutputBytes(file.length());
+        return BitmapUtil.getUriForFile(context, file);
+    }
+
+    private void processDescriptor(Uri selectedImage, FileDescriptor fd, String cacheKey, ObservableEmitter<Uri> emitter,
+                                   CancellationSignal signal, ImportTrace trace, boolean preview) throws IOException {
+        ImageHeader header = readHeader(selectedImage, fd, trace);
+        File file;
+        if (BitmapUtil.canPassThrough(fd, header, longestSide, encodingOptions)) {
+            file = BitmapUtil.getPassthroughImageFile(context, fd, signal, trace);
+        } else {
+            if (preview) {
+                emitPreview(fd, header, emitter, signal, trace);
             }
+            file = BitmapUtil.getProcessedImageFile(context, fd, header, longestSide, encodingOptions, signal, trace);
+        }
+        if (signal.isCanceled()) {
+            BitmapUtil.deleteCacheFile(file);
+            return;
+        }
+        if (cacheKey != null) {
+            Capturandro.getResultCache().put(cacheKey, file);
+        }
+        trace.setOutputBytes(file.length());
+        emitter.onNext(BitmapUtil.getUriForFile(context, file));
+    }
+
+    /**
+     * Emits a small preview ahead of the result if enabled with Capturandro.setPreviewSide and
+     * the result will be larger than the preview. Failing to make one is not an error.
+     */
+    private void emitPreview(FileDescriptor fd, ImageHeader header, ObservableEmitter<Uri> emitter, CancellationSignal signal,
+                             ImportTrace trace) {
+        int previewSide = Capturandro.getPreviewSide();
+        if (previewSide <= 0 || (longestSide > 0 && longestSide <= previewSide) || emitter.isDisposed()) {
+            return;
+        }
+        if (header.hasDimensions() && Math.max(header.getWidth(), header.getHeight()) <= previewSide) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            File preview = BitmapUtil.getPreviewImageFile(context, fd, header, previewSide, PREVIEW_ENCODING, signal);
+            trace.addPreview(System.nanoTime() - start);
+            emitter.onNext(BitmapUtil.getUriForFile(context, preview));
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            Log.i("Capturandro", "Unable to create preview", e);
+        }
+    }
+
+    /**
+     * Serves earlier file results from the ResultCache, but does not add to it, the point of
+     * encoded imports is to not write the image at all.
+     */
+    private EncodedImage readCachedImage(String cacheKey, ImportTrace trace) throws IOException {
+        File cached = Capturandro.getResultCache().get(cacheKey);
+        if (cached == null) {
+            return null;
+        }
+        try {
+            EncodedImage image = BitmapUtil.readEncodedImage(cached, encodingOptions.getFormat());
+            trace.setCacheHit();
+            trace.setOutputBytes(image.getLength());
+            return image;
+        } catch (FileNotFoundException e) {
+            // Evicted since the lookup, encode it again
+            return null;
+        }
+    }
+
+    private EncodedImage encodeDescriptor(Uri selectedImage, FileDescriptor fd, CancellationSignal signal, ImportTrace trace) throws IOException {
+        ImageHeader header = readHeader(selectedImage, fd, trace);
+        EncodedImage image = BitmapUtil.canPassThrough(fd, header, longestSide, encodingOptions)
+                ? BitmapUtil.readPassthroughImage(fd, header, signal, trace)
+                : BitmapUtil.getEncodedImage(fd, header, longestSide, encodingOptions, signal, trace);
+        trace.setOutputBytes(image.getLength());
+        return image;
+    }
+
+    private ImageHeader readHeader(Uri selectedImage, FileDescriptor fd, ImportTrace trace) {
+        long start = System.nanoTime();
+        ImageHeader header = ImageHeader.read(fd);
+        if (header == null) {
+            header = new ImageHeader(0, 0, OrientationUtil.queryOrientation(selectedImage, context.getContentResolver()));
+        }
+        trace.addHeader(System.nanoTime() - start);
+        return header;
+    }
+
+    /**
+     * Returns null if there is no ResultCache or the source cannot be identified.
+     */
+    private String getCacheKey(Uri selectedImage) {
+        if (Capturandro.getResultCache() == null) {
+            return null;
+        }
+        String sourceIdentity = getSourceIdentity(selectedImage);
+        if (sourceIdentity == null) {
+            return null;
+        }
+        return ResultCache.key(sourceIdentity, longestSide, encodingOptions);
+    }
+
+    /**
+     * Identifies the current content behind the uri by its size and modification time, or
+     * returns null if the provider exposes neither and the result should not be cached.
+     */
+    private String getSourceIdentity(Uri selectedImage) {
+        if ("file".equals(selectedImage.getScheme())) {
+            File file = new File(selectedImage.getPath());
+            return file.exists() ? selectedImage + "|" + file.length() + "|" + file.lastModified() : null;
+        }
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(selectedImage, null, null, null, null);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String size = getString(cursor, OpenableColumns.SIZE);
+            String modified = getString(cursor, MediaStore.MediaColumns.DATE_MODIFIED);
+            if (modified == null) {
+                modified = getString(cursor, DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+            }
+            if (size == null && modified == null) {
+                return null;
+            }
+            return selectedImage + "|" + size + "|" + modified;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getString(Cursor cursor, String column) {
+        int columnIndex = cursor.getColumnIndex(column);
+        return columnIndex != -1 ? cursor.getString(columnIndex) : null;
+    }
+
+    /**
+     * Returns a descriptor for the image if the provider backs it with a regular file, which lets
+     * us decode it in place. Pipes and failing providers return null and fall back to copying.
+     */
+    private ParcelFileDescriptor openSeekableDescriptor(Uri selectedImage, CancellationSignal signal) {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(selectedImage, "r", signal);
+        } catch (FileNotFoundException | SecurityException | IllegalArgumentException e) {
+            return null;
+        }
+        if (pfd != null && !BitmapUtil.isSeekable(pfd.getFileDescriptor())) {
+            closeQuietly(pfd);
+            return null;
+        }
+        return pfd;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
         }
-        ).subscribeOn(scheduler).observeOn(AndroidSchedulers.mainThread());
     }
 
     private InputStream openRemoteImage(Uri selectedImage) throws IOException {
@@ -90,7 +547,8 @@ class ImportHandler {
                 if (columnIndex != -1) {
                     String url = cursor.getString(columnIndex);
                     if (url != null && (url.startsWith("http://") || url.startsWith("https://"))) {
-                        return new URL(url).openStream();
+                        RemoteFetcher fetcher = Capturandro.getRemoteFetcher();
+                        return (fetcher != null ? fetcher : new HttpRemoteFetcher(null, 0)).open(url);
                     }
                 }
             }
@@ -0,0 +1,409 @@
+package no.finntech.capturandro;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+
+import io.reactivex.Completable;
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+/*
+ * Append only record of the imports handed to a callback, written before they start. When the
+ * process is killed with imports still queued, the restored activity resumes the unfinished ones
+ * and gets the finished ones from their output files instead of importing them again. Outputs of
+ * journaled imports are pinned in the CacheManager until their session ends.
+ *
+ * Lines are "P" for a started job with its parameters and sources, "D" for an output of one of
+ * its sources and "X" for a job that is no longer needed. The journal is only read and written on
+ * its own background priority thread, callers on the main thread just queue the change. Once the
+ * finished and dropped jobs make up most of it, it is compacted.
+ */
+class ImportJournal {
+    static final String FILE_NAME = Capturandro.TEMPFILE_PREFIX + "journal";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    enum Kind {
+        CAMERA,
+        GALLERY,
+        BATCH
+    }
+
+    private final File file;
+    private final long maxAgeMillis;
+    private final Scheduler scheduler = Schedulers.from(Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            runnable.run();
+        }, "capturandro-journal");
+        thread.setDaemon(true);
+        return thread;
+    }));
+    // The rest is only touched on the journal thread. In the order the jobs were started.
+    private final LinkedHashMap<String, Job> jobs = new LinkedHashMap<>();
+    private Writer writer;
+    private int lines;
+    private boolean loaded;
+
+    ImportJournal(File cacheDir, long maxAgeMillis) {
+        this.file = new File(cacheDir, FILE_NAME);
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Returns the new job at once and writes it in the background. The import passed to track()
+     * is only subscribed once it is written.
+     */
+    Job start(String session, int requestCode, Kind kind, int longestSide, EncodingOptions options, List<String> sources) {
+        final Job job = new Job(UUID.randomUUID().toString(), System.currentTimeMillis(), session, requestCode, kind, longestSide,
+                options, sources);
+        // Its outputs are pinned as they are recorded
+        job.pinned = true;
+        job.written = Completable.fromAction(() -> {
+            load();
+            jobs.put(job.id, job);
+            append(startLine(job));
+        }).subscribeOn(scheduler).cache();
+        job.written.subscribe();
+        return job;
+    }
+
+    private static String startLine(Job job) {
+        StringBuilder line = new StringBuilder("P\t").append(job.id).append('\t').append(job.createdAt).append('\t')
+                .append(job.session).append('\t').append(job.requestCode).append('\t').append(job.kind).append('\t')
+                .append(job.longestSide).append('\t').append(job.options);
+        for (String source : job.sources) {
+            line.append('\t').append(source);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Records the last Uri emitted by a completed single image import. A failed or cancelled
+     * import is dropped, it is not resumed. Goes before observeOn, so nothing is queued on the
+     * main thread.
+     */
+    Observable<Uri> track(final Job job, Observable<Uri> results) {
+        final Uri[] last = new Uri[1];
+        return job.written.andThen(results)
+                .doOnNext(uri -> last[0] = uri)
+                .doOnComplete(() -> {
+                    // Uri.EMPTY stands for a source that could not be copied
+                    if (last[0] != null && !Uri.EMPTY.equals(last[0])) {
+                        finishItem(job, 0, last[0]);
+                    }
+                })
+                .doOnError(e -> drop(job))
+                .doOnDispose(() -> drop(job));
+    }
+
+    /**
+     * Records each image of a batch as it succeeds. Failed images are imported again on resume.
+     */
+    Flowable<ImportResult> track(final Job job, Flowable<ImportResult> results) {
+        return job.written.andThen(results)
+                .doOnNext(result -> {
+                    if (result.isSuccess()) {
+                        finishItem(job, result.getIndex(), result.getUri());
+                    }
+                })
+                .doOnError(e -> drop(job))
+                .doOnCancel(() -> drop(job));
+    }
+
+    private void finishItem(final Job job, final int index, final Uri output) {
+        scheduler.scheduleDirect(() -> {
+            if (!jobs.containsKey(job.id) || output.toString().equals(job.outputs.get(index))) {
+                // Cleared while it was running, or served from the journal on resume
+                return;
+            }
+            job.outputs.put(index, output.toString());
+            pin(output);
+            append("D\t" + job.id + "\t" + index + "\t" + output);
+            compactIfNeeded();
+        });
+    }
+
+    private void drop(final Job job) {
+        scheduler.scheduleDirect(() -> remove(job));
+    }
+
+    private void remove(Job job) {
+        if (jobs.remove(job.id) != null) {
+            if (job.pinned) {
+                for (String output : job.outputs.values()) {
+                    unpin(Uri.parse(output));
+                }
+            }
+            append("X\t" + job.id);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Jobs of a session started in an earlier process, with their outputs pinned again and
+     * checked for whether they still exist, see Job.getOutput().
+     */
+    Single<List<Job>> resume(final Context context, final String session) {
+        return Single.fromCallable(() -> {
+            load();
+            List<Job> resumed = new ArrayList<>();
+            for (Job job : jobs.values()) {
+                if (job.session.equals(session)) {
+                    resumed.add(job);
+                    if (!job.pinned) {
+                        // Resumed again when the activity was recreated before it got the jobs
+                        job.pinned = true;
+                        for (String output : job.outputs.values()) {
+                            pin(Uri.parse(output));
+                        }
+                    }
+                    job.checkOutputs(context);
+                }
+            }
+            return resumed;
+        }).subscribeOn(scheduler);
+    }
+
+    void clear(String session) {
+        clear(session, null);
+    }
+
+    /**
+     * Drops the jobs of the session, or only those with the request code if it is not null.
+     */
+    void clear(final String session, final Integer requestCode) {
+        scheduler.scheduleDirect(() -> {
+            if (!loaded) {
+                // Nothing was journaled in this process, resume() loads the journal for restored sessions
+                return;
+            }
+            for (Job job : new ArrayList<>(jobs.values())) {
+                if (job.session.equals(session) && (requestCode == null || job.requestCode == requestCode)) {
+                    remove(job);
+                }
+            }
+        });
+    }
+
+    private static void pin(Uri output) {
+        CacheManager cacheManager = Capturandro.getCacheManager();
+        if (cacheManager != null) {
+            cacheManager.pin(output);
+        }
+    }
+
+    private static void unpin(Uri output) {
+        CacheManager cacheManager = Capturandro.getCacheManager();
+        if (cacheManager != null) {
+            cacheManager.unpin(output);
+        }
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    try {
+                        readLine(line.split("\t"));
+                    } catch (IllegalArgumentException e) {
+                        // A torn last line after a crash loses at most that line
+                        Log.i("Capturandro", "Skipping import journal line " + lines, e);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.i("Capturandro", "Unable to read import journal", e);
+        }
+        // Older outputs have been evicted from the cache dir anyway
+        long expiredBefore = System.currentTimeMillis() - maxAgeMillis;
+        Iterator<Job> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().createdAt < expiredBefore) {
+                iterator.remove();
+            }
+        }
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+        int live = 0;
+        for (Job job : jobs.values()) {
+            live += 1 + job.outputs.size();
+        }
+        if (lines > live * 2 + 64) {
+            compact();
+        }
+    }
+
+    private void readLine(String[] fields) {
+        if (fields.length >= 9 && "P".equals(fields[0])) {
+            Job job = new Job(fields[1], Long.parseLong(fields[2]), fields[3], Integer.parseInt(fields[4]), Kind.valueOf(fields[5]),
+                    Integer.parseInt(fields[6]), EncodingOptions.fromString(fields[7]),
+                    new ArrayList<>(Arrays.asList(fields).subList(8, fields.length)));
+            jobs.put(job.id, job);
+        } else if (fields.length == 4 && "D".equals(fields[0])) {
+            Job job = jobs.get(fields[1]);
+            if (job != null) {
+                job.outputs.put(Integer.parseInt(fields[2]), fields[3]);
+            }
+        } else if (fields.length == 2 && "X".equals(fields[0])) {
+            jobs.remove(fields[1]);
+        }
+    }
+
+    private void append(String line) {
+        try {
+            if (writer == null) {
+                writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+            }
+            writer.write(line);
+            writer.write('\n');
+            // Has to be on disk before the import can be lost with the process
+            writer.flush();
+            lines++;
+        } catch (IOException e) {
+            Log.i("Capturandro", "Unable to write import journal", e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the live jobs and renames it into place.
+     */
+    private void compact() {
+        File temp = BitmapUtil.getTempFile(file);
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+            int written = 0;
+            try {
+                for (Job job : jobs.values()) {
+                    out.write(startLine(job) + "\n");
+                    written++;
+                    for (Map.Entry<Integer, String> output : job.outputs.entrySet()) {
+                        out.write("D\t" + job.id + "\t" + output.getKey() + "\t" + output.getValue() + "\n");
+                        written++;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (writer != null) {
+                writer.close();
+                writer = null;
+            }
+            BitmapUtil.commitTempFile(temp, file);
+            lines = written;
+        } catch (IOException e) {
+            temp.delete();
+            Log.i("Capturandro", "Unable to compact import journal", e);
+        }
+    }
+
+    static class Job {
+        private final String id;
+        private final long createdAt;
+        private final String session;
+        private final int requestCode;
+        private final Kind kind;
+        private final int longestSide;
+        private final EncodingOptions options;
+        private final List<String> sources;
+        private final Map<Integer, String> outputs = new HashMap<>();
+        private final Map<Integer, Uri> existingOutputs = new HashMap<>();
+        private boolean pinned;
+        // Completes once the job is in the journal, jobs read from it already are
+        private Completable written = Completable.complete();
+
+        Job(String id, long createdAt, String session, int requestCode, Kind kind, int longestSide, EncodingOptions options,
+            List<String> sources) {
+            this.id = id;
+            this.createdAt = createdAt;
+            this.session = session;
+            this.requestCode = requestCode;
+            this.kind = kind;
+            this.longestSide = longestSide;
+            this.options = options;
+            this.sources = sources;
+        }
+
+        int getRequestCode() {
+            return requestCode;
+        }
+
+        Kind getKind() {
+            return kind;
+        }
+
+        int getLongestSide() {
+            return longestSide;
+        }
+
+        EncodingOptions getOptions() {
+            return options;
+        }
+
+        List<String> getSources() {
+            return sources;
+        }
+
+        /**
+         * Output of the source at index, null if it was not imported or its file is gone. Only for
+         * jobs returned by resume(), before they are subscribed.
+         */
+        Uri getOutput(int index) {
+            return existingOutputs.get(index);
+        }
+
+        private void checkOutputs(Context context) {
+            existingOutputs.clear();
+            for (Map.Entry<Integer, String> output : outputs.entrySet()) {
+                Uri uri = Uri.parse(output.getValue());
+                try {
+                    ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+                    if (pfd != null) {
+                        pfd.close();
+                        existingOutputs.put(output.getKey(), uri);
+                    }
+                } catch (IOException | SecurityException e) {
+                    // Evicted or no longer accessible, imported again
+                }
+            }
+        }
+    }
+}
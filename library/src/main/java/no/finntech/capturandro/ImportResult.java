@@ -0,0 +1,70 @@
+package no.finntech.capturandro;
+
+import android.net.Uri;
+
+/*
+ * Outcome of one image in a batch import, see Capturandro.CapturandoBatchCallback.
+ */
+public class ImportResult {
+    private final int index;
+    private final Uri source;
+    private final Uri uri;
+    private final Throwable error;
+
+    private ImportResult(int index, Uri source, Uri uri, Throwable error) {
+        this.index = index;
+        this.source = source;
+        this.uri = uri;
+        this.error = error;
+    }
+
+    static ImportResult success(int index, Uri source, Uri uri) {
+        return new ImportResult(index, source, uri, null);
+    }
+
+    static ImportResult failure(int index, Uri source, Throwable error) {
+        return new ImportResult(index, source, null, error);
+    }
+
+    /**
+     * Position of the image in the selection.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * The selected image.
+     */
+    public Uri getSource() {
+        return source;
+    }
+
+    /**
+     * The processed image, null if the import failed.
+     */
+    public Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * Why the import failed, null if it succeeded.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportResult{" +
+                "index=" + index +
+                ", source=" + source +
+                ", uri=" + uri +
+                ", error=" + error +
+                '}';
+    }
+}
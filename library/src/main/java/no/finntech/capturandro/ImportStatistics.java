@@ -0,0 +1,178 @@
+package no.finntech.capturandro;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Process wide counters for the import pipeline, see Capturandro.getImportStatistics().
+ */
+public class ImportStatistics {
+    private final AtomicLong streamedImports = new AtomicLong();
+    private final AtomicLong streamedBytes = new AtomicLong();
+    private final AtomicLong copiedImports = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+    private final AtomicLong encodedImages = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+    private final AtomicLong encodeAttempts = new AtomicLong();
+    private final AtomicLong writeCalls = new AtomicLong();
+    private final AtomicLong passthroughImages = new AtomicLong();
+    private final AtomicLong passthroughBytes = new AtomicLong();
+    private final AtomicLong remoteFetches = new AtomicLong();
+    private final AtomicLong remoteNotModified = new AtomicLong();
+    private final AtomicLong remoteBytes = new AtomicLong();
+
+    ImportStatistics() {
+    }
+
+    void addStreamed(long bytes) {
+        streamedImports.incrementAndGet();
+        streamedBytes.addAndGet(bytes);
+    }
+
+    void addCopied(long bytes) {
+        copiedImports.incrementAndGet();
+        copiedBytes.addAndGet(bytes);
+    }
+
+    void addEncoded(long bytes, long nanos, int attempts) {
+        encodedImages.incrementAndGet();
+        encodedBytes.addAndGet(bytes);
+        encodeNanos.addAndGet(nanos);
+        encodeAttempts.addAndGet(attempts);
+    }
+
+    void addWriteCalls(long calls) {
+        writeCalls.addAndGet(calls);
+    }
+
+    void addPassthrough(long bytes) {
+        passthroughImages.incrementAndGet();
+        passthroughBytes.addAndGet(bytes);
+    }
+
+    void addRemoteFetch(long bytes, boolean notModified) {
+        remoteFetches.incrementAndGet();
+        remoteBytes.addAndGet(bytes);
+        if (notModified) {
+            remoteNotModified.incrementAndGet();
+        }
+    }
+
+    /**
+     * Number of images decoded directly from a seekable file descriptor.
+     */
+    public long getStreamedImports() {
+        return streamedImports.get();
+    }
+
+    /**
+     * Size in bytes of the images decoded directly from a seekable file descriptor.
+     */
+    public long getStreamedBytes() {
+        return streamedBytes.get();
+    }
+
+    /**
+     * Number of images that had to be copied to a temporary file before decoding.
+     */
+    public long getCopiedImports() {
+        return copiedImports.get();
+    }
+
+    /**
+     * Bytes written to temporary files before decoding.
+     */
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    /**
+     * Number of processed images written to the cache dir.
+     */
+    public long getEncodedImages() {
+        return encodedImages.get();
+    }
+
+    /**
+     * Total size of the processed images.
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.get();
+    }
+
+    /**
+     * Total time spent encoding and writing processed images, in milliseconds.
+     */
+    public long getEncodeTimeMillis() {
+        return encodeNanos.get() / 1000000;
+    }
+
+    /**
+     * Number of Bitmap.compress calls, more than one per image when fitting a maximum size.
+     */
+    public long getEncodeAttempts() {
+        return encodeAttempts.get();
+    }
+
+    /**
+     * Number of writes made to temporary and processed files.
+     */
+    public long getWriteCalls() {
+        return writeCalls.get();
+    }
+
+    /**
+     * Number of images returned as is, without decoding, see EncodingOptions.isPassthrough().
+     */
+    public long getPassthroughImages() {
+        return passthroughImages.get();
+    }
+
+    /**
+     * Size of the images returned as is.
+     */
+    public long getPassthroughBytes() {
+        return passthroughBytes.get();
+    }
+
+    /**
+     * Number of requests made by HttpRemoteFetcher.
+     */
+    public long getRemoteFetches() {
+        return remoteFetches.get();
+    }
+
+    /**
+     * Number of remote images served from the HTTP cache after revalidating them.
+     */
+    public long getRemoteNotModified() {
+        return remoteNotModified.get();
+    }
+
+    /**
+     * Bytes downloaded by HttpRemoteFetcher.
+     */
+    public long getRemoteBytes() {
+        return remoteBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ImportStatistics{" +
+                "streamedImports=" + streamedImports +
+                ", streamedBytes=" + streamedBytes +
+                ", copiedImports=" + copiedImports +
+                ", copiedBytes=" + copiedBytes +
+                ", encodedImages=" + encodedImages +
+                ", encodedBytes=" + encodedBytes +
+                ", encodeTimeMillis=" + getEncodeTimeMillis() +
+                ", encodeAttempts=" + encodeAttempts +
+                ", writeCalls=" + writeCalls +
+                ", passthroughImages=" + passthroughImages +
+                ", passthroughBytes=" + passthroughBytes +
+                ", remoteFetches=" + remoteFetches +
+                ", remoteNotModified=" + remoteNotModified +
+                ", remoteBytes=" + remoteBytes +
+                '}';
+    }
+}
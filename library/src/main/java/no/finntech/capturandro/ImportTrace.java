@@ -0,0 +1,295 @@
+package no.finntech.capturandro;
+
+import android.net.Uri;
+
+/*
+ * Timings and sizes of one import, reported to CapturandroMetrics when it finishes. While no
+ * metrics listener is set every import shares the DISABLED trace, which ignores all updates.
+ */
+public class ImportTrace {
+    static final ImportTrace DISABLED = new ImportTrace(null, false);
+
+    private final Uri source;
+    private final boolean enabled;
+    private long subscribedAt;
+    private long startedAt;
+    private long queueWaitNanos;
+    private long openNanos;
+    private long headerNanos;
+    private long budgetWaitNanos;
+    private long decodeNanos;
+    private long transformNanos;
+    private long encodeNanos;
+    private long previewNanos;
+    private long totalNanos;
+    private long inputBytes;
+    private long outputBytes;
+    private long peakBitmapBytes;
+    private int sourceWidth;
+    private int sourceHeight;
+    private int sampleSize;
+    private String decoder;
+    private boolean cacheHit;
+    private boolean cancelled;
+    private Throwable error;
+    private boolean finished;
+
+    private ImportTrace(Uri source, boolean enabled) {
+        this.source = source;
+        this.enabled = enabled;
+    }
+
+    /**
+     * A new trace if a metrics listener is set, DISABLED otherwise.
+     */
+    static ImportTrace create(Uri source) {
+        return Capturandro.getMetrics() == CapturandroMetrics.NONE ? DISABLED : new ImportTrace(source, true);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Called on the subscribing thread, before the import is queued on the scheduler.
+     */
+    void subscribed() {
+        if (enabled) {
+            subscribedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Called on the scheduler when the import starts running.
+     */
+    void started() {
+        if (enabled) {
+            startedAt = System.nanoTime();
+            queueWaitNanos = subscribedAt != 0 ? startedAt - subscribedAt : 0;
+        }
+    }
+
+    void addOpen(long nanos, long bytes) {
+        if (enabled) {
+            openNanos += nanos;
+            inputBytes += bytes;
+        }
+    }
+
+    void addHeader(long nanos) {
+        if (enabled) {
+            headerNanos += nanos;
+        }
+    }
+
+    void addBudgetWait(long nanos) {
+        if (enabled) {
+            budgetWaitNanos += nanos;
+        }
+    }
+
+    void addDecode(long nanos, int width, int height, int sampleSize, BitmapDecoder decoder) {
+        if (enabled) {
+            decodeNanos += nanos;
+            this.sourceWidth = width;
+            this.sourceHeight = height;
+            this.sampleSize = sampleSize;
+            this.decoder = decoder.getClass().getSimpleName();
+        }
+    }
+
+    void addTransform(long nanos, long bitmapBytes) {
+        if (enabled) {
+            transformNanos += nanos;
+            peakBitmapBytes = Math.max(peakBitmapBytes, bitmapBytes);
+        }
+    }
+
+    void addEncode(long nanos) {
+        if (enabled) {
+            encodeNanos += nanos;
+        }
+    }
+
+    void addPreview(long nanos) {
+        if (enabled) {
+            previewNanos += nanos;
+        }
+    }
+
+    void setOutputBytes(long bytes) {
+        if (enabled) {
+            outputBytes = bytes;
+        }
+    }
+
+    void setCacheHit() {
+        if (enabled) {
+            cacheHit = true;
+        }
+    }
+
+    /**
+     * Reports the trace to the metrics listener once, error is null for imports that succeeded.
+     */
+    void finish(boolean cancelled, Throwable error) {
+        if (enabled && !finished) {
+            finished = true;
+            totalNanos = startedAt != 0 ? System.nanoTime() - startedAt : 0;
+            this.cancelled = cancelled;
+            this.error = error;
+            Capturandro.getMetrics().onImportFinished(this);
+        }
+    }
+
+    /**
+     * The imported image, null for camera imports.
+     */
+    public Uri getSource() {
+        return source;
+    }
+
+    /**
+     * Time between subscribing and the import starting on the scheduler.
+     */
+    public long getQueueWaitNanos() {
+        return queueWaitNanos;
+    }
+
+    /**
+     * Time spent opening the source, including copying sources that are not seekable.
+     */
+    public long getOpenNanos() {
+        return openNanos;
+    }
+
+    /**
+     * Time spent reading dimensions and orientation from the image header.
+     */
+    public long getHeaderNanos() {
+        return headerNanos;
+    }
+
+    /**
+     * Time spent waiting for the MemoryBudget to admit the decode.
+     */
+    public long getBudgetWaitNanos() {
+        return budgetWaitNanos;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    /**
+     * Time spent scaling and rotating the decoded bitmap.
+     */
+    public long getTransformNanos() {
+        return transformNanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * Time spent producing the preview, see Capturandro.setPreviewSide().
+     */
+    public long getPreviewNanos() {
+        return previewNanos;
+    }
+
+    /**
+     * Time from the import starting on the scheduler until it finished, queue wait not included.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Size of the source, as stored or as copied.
+     */
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    /**
+     * Size of the processed image.
+     */
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    /**
+     * Bytes of the decoded and transformed bitmaps held at the same time.
+     */
+    public long getPeakBitmapBytes() {
+        return peakBitmapBytes;
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Name of the decoder used, null if nothing was decoded.
+     */
+    public String getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Whether the result was served from the result cache without decoding.
+     */
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    /**
+     * Whether the subscriber disposed before the import finished.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Why the import failed, null if it succeeded or was cancelled.
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "ImportTrace{" +
+                "source=" + source +
+                ", queueWaitNanos=" + queueWaitNanos +
+                ", openNanos=" + openNanos +
+                ", headerNanos=" + headerNanos +
+                ", budgetWaitNanos=" + budgetWaitNanos +
+                ", decodeNanos=" + decodeNanos +
+                ", transformNanos=" + transformNanos +
+                ", encodeNanos=" + encodeNanos +
+                ", previewNanos=" + previewNanos +
+                ", totalNanos=" + totalNanos +
+                ", inputBytes=" + inputBytes +
+                ", outputBytes=" + outputBytes +
+                ", peakBitmapBytes=" + peakBitmapBytes +
+                ", sourceWidth=" + sourceWidth +
+                ", sourceHeight=" + sourceHeight +
+                ", sampleSize=" + sampleSize +
+                ", decoder=" + decoder +
+                ", cacheHit=" + cacheHit +
+                ", cancelled=" + cancelled +
+                ", error=" + error +
+                '}';
+    }
+}
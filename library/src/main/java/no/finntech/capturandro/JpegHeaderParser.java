@@ -0,0 +1,189 @@
+package no.finntech.capturandro;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/*
+ * Minimal JPEG header reader. Walks the marker segments up to the first SOF, picking up the
+ * orientation tag from IFD0 of the APP1 Exif segment on the way, without building a full
+ * ExifInterface. Reads are positional into a per thread buffer, so walking the segments does
+ * not allocate. Anything that is not a plain JPEG is left to ExifInterface.
+ */
+class JpegHeaderParser {
+    // Large enough for any marker segment, the length field is 16 bits
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+
+    interface ByteSource {
+        /**
+         * Reads up to length bytes at position, returns the number of bytes read or -1 at the end.
+         */
+        int read(long position, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private JpegHeaderParser() {
+    }
+
+    static ImageHeader parse(final FileDescriptor fd) throws IOException {
+        return parse((position, buffer, offset, length) -> {
+            try {
+                int read = Os.pread(fd, buffer, offset, length, position);
+                return read == 0 ? -1 : read;
+            } catch (ErrnoException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Returns null if the source is not a JPEG or its header is malformed.
+     */
+    static ImageHeader parse(ByteSource source) throws IOException {
+        byte[] buffer = buffers.get();
+        if (readFully(source, 0, buffer, 2) < 2 || (buffer[0] & 0xff) != 0xFF || (buffer[1] & 0xff) != MARKER_SOI) {
+            return null;
+        }
+        int orientation = 0;
+        boolean exifRead = false;
+        long position = 2;
+        while (true) {
+            if (readFully(source, position, buffer, 4) < 4 || (buffer[0] & 0xff) != 0xFF) {
+                return null;
+            }
+            int marker = buffer[1] & 0xff;
+            if (marker == 0xFF) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                // No SOF before the image data
+                return null;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                // Markers without a length
+                position += 2;
+                continue;
+            }
+            int length = readUnsignedShort(buffer, 2, true) - 2;
+            if (length < 0) {
+                return null;
+            }
+            long segment = position + 4;
+            if (marker == MARKER_APP1 && !exifRead) {
+                int read = readFully(source, segment, buffer, length);
+                if (isExif(buffer, read)) {
+                    exifRead = true;
+                    orientation = readOrientation(buffer, 6, read);
+                }
+            } else if (isStartOfFrame(marker)) {
+                if (readFully(source, segment, buffer, 5) < 5) {
+                    return null;
+                }
+                int height = readUnsignedShort(buffer, 1, true);
+                int width = readUnsignedShort(buffer, 3, true);
+                return new ImageHeader(width, height, orientation, true);
+            }
+            position = segment + length;
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT, JPG and DAC which share the range
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean isExif(byte[] buffer, int length) {
+        return length >= 6 && buffer[0] == 'E' && buffer[1] == 'x' && buffer[2] == 'i' && buffer[3] == 'f'
+                && buffer[4] == 0 && buffer[5] == 0;
+    }
+
+    /**
+     * Orientation in degrees from IFD0 of the TIFF structure at tiff, 0 if it has none.
+     */
+    private static int readOrientation(byte[] buffer, int tiff, int end) {
+        if (end - tiff < 8) {
+            return 0;
+        }
+        boolean bigEndian;
+        if (buffer[tiff] == 'M' && buffer[tiff + 1] == 'M') {
+            bigEndian = true;
+        } else if (buffer[tiff] == 'I' && buffer[tiff + 1] == 'I') {
+            bigEndian = false;
+        } else {
+            return 0;
+        }
+        long ifdOffset = readUnsignedInt(buffer, tiff + 4, bigEndian);
+        if (ifdOffset < 8 || tiff + ifdOffset + 2 > end) {
+            return 0;
+        }
+        int ifd = tiff + (int) ifdOffset;
+        int entries = readUnsignedShort(buffer, ifd, bigEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > end) {
+                return 0;
+            }
+            if (readUnsignedShort(buffer, entry, bigEndian) == TAG_ORIENTATION) {
+                if (readUnsignedShort(buffer, entry + 2, bigEndian) != TYPE_SHORT) {
+                    return 0;
+                }
+                return toDegrees(readUnsignedShort(buffer, entry + 8, bigEndian));
+            }
+        }
+        return 0;
+    }
+
+    // Same mapping as OrientationUtil.getOrientation(ExifInterface)
+    private static int toDegrees(int exifOrientation) {
+        switch (exifOrientation) {
+            case 3:
+                return 180;
+            case 6:
+                return 90;
+            case 8:
+                return 270;
+            default:
+                return 0;
+        }
+    }
+
+    private static int readFully(ByteSource source, long position, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = source.read(position + total, buffer, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static int readUnsignedShort(byte[] buffer, int offset, boolean bigEndian) {
+        int b0 = buffer[offset] & 0xff;
+        int b1 = buffer[offset + 1] & 0xff;
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static long readUnsignedInt(byte[] buffer, int offset, boolean bigEndian) {
+        long high = readUnsignedShort(buffer, offset, bigEndian);
+        long low = readUnsignedShort(buffer, offset + 2, bigEndian);
+        return bigEndian ? (high << 16) | low : (low << 16) | high;
+    }
+}
@@ -0,0 +1,68 @@
+package no.finntech.capturandro;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+/*
+ * Admission control for concurrent imports. Each import reserves the bytes its decoded bitmaps
+ * will need before decoding, and waits while the reservations of other imports would push the
+ * total past the budget. An image larger than the whole budget is admitted once it runs alone.
+ */
+public class MemoryBudget {
+    public static final MemoryBudget UNLIMITED = new MemoryBudget(Long.MAX_VALUE);
+
+    private final long maxBytes;
+    private long reservedBytes;
+    private int reservations;
+
+    public MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Default budget for parallel imports, a quarter of the memory class of the device.
+     */
+    public static MemoryBudget fromMemoryClass(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClass = activityManager != null ? activityManager.getMemoryClass() : 16;
+        return new MemoryBudget(memoryClass * 1024L * 1024L / 4);
+    }
+
+    /**
+     * Throws OperationCanceledException if the signal is cancelled while waiting, the canceller
+     * calls wakeUp() so the wait ends right away.
+     */
+    synchronized void acquire(long bytes, CancellationSignal signal) throws InterruptedException {
+        while (reservations > 0 && reservedBytes + bytes > maxBytes) {
+            signal.throwIfCanceled();
+            wait();
+        }
+        signal.throwIfCanceled();
+        reservedBytes += bytes;
+        reservations++;
+    }
+
+    synchronized void release(long bytes) {
+        reservedBytes -= bytes;
+        reservations--;
+        notifyAll();
+    }
+
+    synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public synchronized int getReservations() {
+        return reservations;
+    }
+}
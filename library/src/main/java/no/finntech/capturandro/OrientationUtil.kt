@@ -13,16 +13,22 @@ object OrientationUtil {
     @JvmStatic
     fun getOrientation(photoUri: Uri, contentResolver: ContentResolver): Int {
         val exif = readExif(photoUri, contentResolver)
-        if (exif != null) {
-            return getOrientation(exif)
+        return if (exif != null) {
+            getOrientation(exif)
         } else {
-            val projection = arrayOf(MediaStore.Images.ImageColumns.ORIENTATION)
-            val cursor = contentResolver.query(photoUri, projection, null, null, null)
-            if (cursor != null) {
-                if (cursor.moveToFirst() && cursor.columnCount > 0) {
-                    return cursor.getInt(0)
-                }
-                cursor.close()
+            queryOrientation(photoUri, contentResolver)
+        }
+    }
+
+    /**
+     * Orientation as recorded by MediaStore, for images without readable exif data.
+     */
+    @JvmStatic
+    fun queryOrientation(photoUri: Uri, contentResolver: ContentResolver): Int {
+        val projection = arrayOf(MediaStore.Images.ImageColumns.ORIENTATION)
+        contentResolver.query(photoUri, projection, null, null, null)?.use { cursor ->
+            if (cursor.moveToFirst() && cursor.columnCount > 0) {
+                return cursor.getInt(0)
             }
         }
         return ExifInterface.ORIENTATION_UNDEFINED
@@ -0,0 +1,100 @@
+package no.finntech.capturandro;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Buffers writes in a large per thread buffer. Bitmap.compress hands its output over in chunks
+ * of a few kilobytes, each of which would otherwise become a write syscall on the file. Only one
+ * stream, or one user of threadBuffer(), may be active per thread at a time.
+ */
+class PooledOutputStream extends OutputStream {
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private int count;
+    private long bytesWritten;
+    private int writeCalls;
+
+    PooledOutputStream(OutputStream out) {
+        this.out = out;
+        this.buffer = buffers.get();
+    }
+
+    /**
+     * The buffer backing streams on the calling thread, for copy loops that do their own writes.
+     */
+    static byte[] threadBuffer() {
+        return buffers.get();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            flushBuffer();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len >= buffer.length) {
+            // Larger than the buffer, no point in copying it
+            flushBuffer();
+            out.write(b, off, len);
+            bytesWritten += len;
+            writeCalls++;
+            return;
+        }
+        if (len > buffer.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Bytes passed on to the underlying stream so far.
+     */
+    long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Number of writes made to the underlying stream so far.
+     */
+    int getWriteCalls() {
+        return writeCalls;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            bytesWritten += count;
+            writeCalls++;
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package no.finntech.capturandro;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+/*
+ * Decodes huge images (panoramas) strip by strip with BitmapRegionDecoder, scaling each strip
+ * straight into an output bitmap of the final size. Peak memory is bounded by the output size
+ * plus one strip, not by the size of the source.
+ */
+class RegionBitmapDecoder implements BitmapDecoder {
+    static final RegionBitmapDecoder INSTANCE = new RegionBitmapDecoder();
+
+    // Decoded pixels per strip
+    private static final int STRIP_PIXELS = 1024 * 1024;
+
+    private RegionBitmapDecoder() {
+    }
+
+    @Override
+    public boolean appliesOrientation() {
+        return false;
+    }
+
+    @Override
+    public long estimateRequiredBytes(int width, int height, int longestSide) {
+        float scale = BitmapUtil.calculateScale(width, height, longestSide);
+        long outputBytes = (long) (width * scale) * (long) (height * scale) * 4;
+        // Output, rotated copy and one strip
+        return 2 * outputBytes + STRIP_PIXELS * 4L;
+    }
+
+    @Override
+    public Bitmap decode(FileDescriptor fd, int width, int height, int longestSide, boolean softwareRequired,
+                         CancellationSignal signal) throws IOException {
+        BitmapUtil.rewind(fd);
+        BitmapRegionDecoder regionDecoder;
+        try {
+            regionDecoder = BitmapRegionDecoder.newInstance(fd, false);
+        } catch (IOException e) {
+            Log.i("Capturandro", "Region decoding not supported, decoding whole image", e);
+            return BitmapFactoryDecoder.INSTANCE.decode(fd, width, height, longestSide, softwareRequired, signal);
+        }
+        Bitmap strip = null;
+        try {
+            width = regionDecoder.getWidth();
+            height = regionDecoder.getHeight();
+            float scale = BitmapUtil.calculateScale(width, height, longestSide);
+            int sampleSize = BitmapUtil.calculateInSampleSize(width, height, longestSide);
+            int outputWidth = Math.max(1, Math.round(width * scale));
+            int outputHeight = Math.max(1, Math.round(height * scale));
+
+            // Strips start on multiples of the sample size so sampled rows line up between strips
+            int stripRows = Math.max(1, STRIP_PIXELS / Math.max(1, width / sampleSize)) * sampleSize;
+
+            Bitmap output = BitmapUtil.obtain(outputWidth, outputHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(output);
+            Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inMutable = true;
+            Rect region = new Rect();
+            RectF destination = new RectF();
+            for (int top = 0; top < height; top += stripRows) {
+                if (signal.isCanceled()) {
+                    BitmapUtil.release(output);
+                    throw new OperationCanceledException();
+                }
+                int bottom = Math.min(height, top + stripRows);
+                region.set(0, top, width, bottom);
+                options.inBitmap = strip != null && bottom - top == stripRows ? strip : null;
+                Bitmap decoded = regionDecoder.decodeRegion(region, options);
+                if (decoded == null) {
+                    BitmapUtil.release(output);
+                    return null;
+                }
+                if (strip != null && decoded != strip) {
+                    strip.recycle();
+                }
+                strip = decoded;
+                destination.set(0, top * scale, outputWidth, bottom * scale);
+                canvas.drawBitmap(strip, null, destination, paint);
+            }
+            return output;
+        } finally {
+            if (strip != null) {
+                strip.recycle();
+            }
+            regionDecoder.recycle();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package no.finntech.capturandro;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * Downloads gallery entries that only exist on a server, see Capturandro.setRemoteFetcher().
+ * The default is HttpRemoteFetcher, apps can plug in their own HTTP stack instead.
+ */
+public interface RemoteFetcher {
+    /**
+     * Opens the image at an http or https url. Called on the import scheduler, the caller
+     * closes the stream, possibly from another thread to abort a cancelled import.
+     */
+    InputStream open(String url) throws IOException;
+}
@@ -0,0 +1,187 @@
+package no.finntech.capturandro;
+
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ * Disk cache of processed images keyed by source identity and processing parameters, so picking
+ * the same image again returns the earlier result without decoding it. Results live in their own
+ * directory below the cache dir, which the startup cleanup of temporary files leaves alone.
+ */
+class ResultCache {
+    static final String DIRECTORY_NAME = Capturandro.TEMPFILE_PREFIX + "results";
+
+    private final File directory;
+    private final long maxBytes;
+    // In access order, the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    private boolean loaded;
+
+    ResultCache(File cacheDir, long maxBytes) {
+        this.directory = new File(cacheDir, DIRECTORY_NAME);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The extension of the encoded format is part of the key, so cached files keep a name the
+     * FileProvider can derive the mime type from. The source identity stands for the content and
+     * with it the orientation, so the key is known before the source is opened.
+     */
+    static String key(String sourceIdentity, int longestSide, EncodingOptions options) {
+        String key = sourceIdentity + "|" + longestSide + "|" + options;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(Charset.forName("UTF-8")));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.append(options.getExtension()).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    synchronized File get(String key) {
+        load();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.file.exists()) {
+            entries.remove(key);
+            size -= entry.length;
+            return null;
+        }
+        entry.file.setLastModified(System.currentTimeMillis());
+        return entry.file;
+    }
+
+    /**
+     * Links or copies the result stored under the key to target, a file of the caller's that
+     * eviction does not touch. Returns false if there is no such result.
+     */
+    synchronized boolean copyTo(String key, File target) {
+        File cached = get(key);
+        if (cached == null) {
+            return false;
+        }
+        try {
+            linkOrCopy(cached, target);
+            return true;
+        } catch (IOException e) {
+            target.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Stores a processed image under the key. The result is hard linked into the cache where
+     * possible, so the caller keeps its own file and no bytes are copied.
+     */
+    synchronized void put(String key, File result) {
+        if (maxBytes <= 0 || result.length() > maxBytes) {
+            return;
+        }
+        load();
+        File file = new File(directory, key);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return;
+        }
+        try {
+            file.delete();
+            linkOrCopy(result, file);
+        } catch (IOException e) {
+            file.delete();
+            return;
+        }
+        Entry entry = new Entry(file);
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += entry.length;
+        trimTo(maxBytes);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (file.getName().endsWith(BitmapUtil.TEMPFILE_SUFFIX)) {
+                // Left behind by a copy that never completed
+                file.delete();
+                continue;
+            }
+            Entry entry = new Entry(file);
+            entries.put(file.getName(), entry);
+            size += entry.length;
+        }
+        trimTo(maxBytes);
+    }
+
+    private void trimTo(long maxSize) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            size -= entry.length;
+            entry.file.delete();
+            iterator.remove();
+        }
+    }
+
+    private static void linkOrCopy(File source, File target) throws IOException {
+        try {
+            Os.link(source.getAbsolutePath(), target.getAbsolutePath());
+            return;
+        } catch (ErrnoException e) {
+            // Not supported by the file system, fall back to copying
+        }
+        File temp = BitmapUtil.getTempFile(target);
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                BitmapUtil.copy(in, out, null);
+            } finally {
+                out.close();
+            }
+            BitmapUtil.commitTempFile(temp, target);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class Entry {
+        private final File file;
+        private final long length;
+
+        Entry(File file) {
+            this.file = file;
+            this.length = file.length();
+        }
+    }
+}
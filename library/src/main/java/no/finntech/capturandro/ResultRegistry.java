@@ -0,0 +1,252 @@
+package no.finntech.capturandro;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Flowable;
+import io.reactivex.Observable;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+/*
+ * Process wide record of the imports handed to a callback, grouped by the session of the
+ * Capturandro that started them. An activity recreated after a configuration change continues
+ * the session and gets the same replaying results again, finished or still running, instead of
+ * importing anew.
+ *
+ * An import nobody listens to any more is cancelled right away, unless its activity is being
+ * recreated for a configuration change. Then it gets GRACE_PERIOD_MILLIS, which is long enough
+ * for the recreated activity to subscribe again. Ending the session cancels it too. Failed imports
+ * and encoded images are only kept until they have been delivered, so a failed import can be
+ * retried and no encoded bytes stay in memory for the rest of the session.
+ */
+class ResultRegistry {
+    static final long GRACE_PERIOD_MILLIS = 5 * 1000;
+
+    enum Kind {
+        IMPORT,
+        ENCODED_IMPORT,
+        BATCH_IMPORT
+    }
+
+    // In the order the imports were started
+    private final Map<String, LinkedHashMap<String, Entry>> sessions = new HashMap<>();
+    // Sessions whose activity is recreated, with the uptime until which their imports are kept
+    private final Map<String, Long> recreating = new HashMap<>();
+
+    /**
+     * Registers the results under the key, replacing earlier results for it, so picking the same
+     * image again imports it again. Results are replayed to every subscriber, the import starts
+     * with the first one.
+     */
+    synchronized <T> Observable<T> observable(String session, int requestCode, Kind kind, String source, Observable<T> results) {
+        final Entry entry = new Entry(session, key(requestCode, kind, source), requestCode, kind);
+        Observable<T> shared = results
+                .doOnError(e -> terminated(entry, false))
+                .doOnComplete(() -> terminated(entry, kind != Kind.ENCODED_IMPORT))
+                .replay()
+                .autoConnect(1, entry::setConnection);
+        Observable<T> tracked = shared
+                .doOnSubscribe(d -> subscribed(entry))
+                .doFinally(() -> unsubscribed(entry));
+        entry.results = tracked;
+        entries(session).put(entry.key, entry);
+        return tracked;
+    }
+
+    synchronized Flowable<ImportResult> flowable(String session, int requestCode, String source, Flowable<ImportResult> results) {
+        final Entry entry = new Entry(session, key(requestCode, Kind.BATCH_IMPORT, source), requestCode, Kind.BATCH_IMPORT);
+        Flowable<ImportResult> shared = results
+                .doOnError(e -> terminated(entry, false))
+                .doOnComplete(() -> terminated(entry, true))
+                .replay()
+                .autoConnect(1, entry::setConnection);
+        Flowable<ImportResult> tracked = shared
+                .doOnSubscribe(s -> subscribed(entry))
+                .doFinally(() -> unsubscribed(entry));
+        entry.results = tracked;
+        entries(session).put(entry.key, entry);
+        return tracked;
+    }
+
+    synchronized List<Entry> get(String session) {
+        LinkedHashMap<String, Entry> entries = sessions.get(session);
+        return entries != null ? new ArrayList<>(entries.values()) : new ArrayList<>();
+    }
+
+    /**
+     * Forgets the results for the request code, cancelling imports that are still running.
+     */
+    synchronized void remove(String session, int requestCode) {
+        LinkedHashMap<String, Entry> entries = sessions.get(session);
+        if (entries == null) {
+            return;
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.requestCode == requestCode) {
+                entry.dispose();
+                iterator.remove();
+            }
+        }
+        if (entries.isEmpty()) {
+            sessions.remove(session);
+        }
+    }
+
+    /**
+     * Ends the session, cancelling imports that are still running.
+     */
+    synchronized void clear(String session) {
+        recreating.remove(session);
+        LinkedHashMap<String, Entry> entries = sessions.remove(session);
+        if (entries != null) {
+            for (Entry entry : entries.values()) {
+                entry.dispose();
+            }
+        }
+    }
+
+    /**
+     * Keeps the imports of the session running for the grace period once they lose their
+     * subscribers, as the activity is destroyed to be recreated.
+     */
+    synchronized void recreating(String session) {
+        recreating.put(session, SystemClock.uptimeMillis() + GRACE_PERIOD_MILLIS);
+    }
+
+    private synchronized void subscribed(Entry entry) {
+        entry.subscribers++;
+    }
+
+    private synchronized void unsubscribed(final Entry entry) {
+        entry.subscribers--;
+        if (entry.subscribers > 0) {
+            return;
+        }
+        if (entry.terminated) {
+            if (!entry.retained) {
+                // Delivered, nothing left to hand to a recreated activity
+                forget(entry);
+            }
+            return;
+        }
+        final int generation = ++entry.generation;
+        // The activity may dispose before it tells onDestroy that it is recreated, both happen in
+        // the same main thread message
+        AndroidSchedulers.mainThread().scheduleDirect(() -> released(entry, generation));
+    }
+
+    private synchronized void released(Entry entry, int generation) {
+        if (entry.generation != generation || entry.subscribers > 0 || entry.terminated) {
+            return;
+        }
+        Long keepUntil = recreating.get(entry.session);
+        if (keepUntil != null && keepUntil > SystemClock.uptimeMillis()) {
+            Schedulers.computation().scheduleDirect(() -> expire(entry, generation), GRACE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        recreating.remove(entry.session);
+        entry.dispose();
+        forget(entry);
+    }
+
+    private synchronized void terminated(Entry entry, boolean retained) {
+        entry.terminated = true;
+        // Kept at least until the next subscriber got it, when it ended while nobody listened
+        entry.retained = retained;
+    }
+
+    /**
+     * Cancels an import nobody subscribed to again within the grace period.
+     */
+    private synchronized void expire(Entry entry, int generation) {
+        if (entry.generation != generation || entry.subscribers > 0 || entry.terminated) {
+            return;
+        }
+        entry.dispose();
+        forget(entry);
+    }
+
+    private void forget(Entry entry) {
+        LinkedHashMap<String, Entry> entries = sessions.get(entry.session);
+        // A new import may already have taken the key
+        if (entries != null && entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+            if (entries.isEmpty()) {
+                sessions.remove(entry.session);
+            }
+        }
+    }
+
+    private LinkedHashMap<String, Entry> entries(String session) {
+        LinkedHashMap<String, Entry> entries = sessions.get(session);
+        if (entries == null) {
+            entries = new LinkedHashMap<>();
+            sessions.put(session, entries);
+        }
+        return entries;
+    }
+
+    private static String key(int requestCode, Kind kind, String source) {
+        return requestCode + "|" + kind + "|" + source;
+    }
+
+    static class Entry {
+        private final String session;
+        private final String key;
+        private final int requestCode;
+        private final Kind kind;
+        private Object results;
+        // Guarded by the registry
+        private int subscribers;
+        private int generation;
+        private boolean terminated;
+        private boolean retained;
+        private volatile Disposable connection;
+        private volatile boolean disposed;
+
+        Entry(String session, String key, int requestCode, Kind kind) {
+            this.session = session;
+            this.key = key;
+            this.requestCode = requestCode;
+            this.kind = kind;
+        }
+
+        int getRequestCode() {
+            return requestCode;
+        }
+
+        Kind getKind() {
+            return kind;
+        }
+
+        Object getResults() {
+            return results;
+        }
+
+        private void setConnection(Disposable connection) {
+            this.connection = connection;
+            if (disposed) {
+                connection.dispose();
+            }
+        }
+
+        private void dispose() {
+            disposed = true;
+            Disposable connection = this.connection;
+            if (connection != null) {
+                connection.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package no.finntech.capturandro;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import io.reactivex.Observable;
+
+/*
+ * Shares one in-flight import between everyone asking for the same result at the same time. The
+ * first subscriber starts the import, later ones join it and get what it emitted so far replayed.
+ * The entry is dropped once the import terminates, or is disposed because nobody listens anymore,
+ * so a later request imports again and can be served by the ResultCache.
+ */
+class SingleFlight {
+    private final Map<String, Observable<?>> inFlight = new HashMap<>();
+
+    <T> Observable<T> share(final String key, final Callable<Observable<T>> factory) {
+        return Observable.defer(() -> get(key, factory));
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> Observable<T> get(String key, Callable<Observable<T>> factory) throws Exception {
+        Observable<T> shared = (Observable<T>) inFlight.get(key);
+        if (shared == null) {
+            final Observable<?>[] self = new Observable<?>[1];
+            shared = factory.call()
+                    .doFinally(() -> remove(key, self[0]))
+                    .replay()
+                    .refCount();
+            self[0] = shared;
+            inFlight.put(key, shared);
+        }
+        return shared;
+    }
+
+    private synchronized void remove(String key, Observable<?> shared) {
+        // A new import may already have taken the key
+        if (inFlight.get(key) == shared) {
+            inFlight.remove(key);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package no.finntech.capturandro;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.GraphicsMode;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Robolectric's native graphics, so the sizes are those of real decodes and transforms
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class BitmapUtilTest {
+    private static final int[][] SIZES = {
+            {4032, 3024}, {3024, 4032}, {3264, 2448}, {1920, 1080}, {1080, 1920}, {1280, 960},
+            {1000, 1000}, {1025, 1}, {1, 1025}, {2047, 1535}, {2048, 1536}, {2049, 1537}, {640, 480},
+            {8000, 100}, {12000, 9000}
+    };
+    private static final int[] LONGEST_SIDES = {1, 100, 640, 1000, 1023, 1024, 1025, 1600, 2048, 4096};
+    // Decoded for real, so only sizes that are cheap to encode, mostly not powers of two
+    private static final int[][] DECODED_SIZES = {
+            {2047, 1535}, {2049, 1537}, {1537, 2049}, {1999, 1333}, {1025, 1}, {1, 1025}, {1000, 1000}, {777, 555}
+    };
+    private static final int[] DECODED_LONGEST_SIDES = {100, 333, 640, 1000, 1023, 1024, 1025, 1600};
+
+    @Test
+    public void sampleSizeIsTheLargestPowerOfTwoKeepingLongestSide() {
+        for (int[] size : SIZES) {
+            for (int longestSide : LONGEST_SIDES) {
+                int sampleSize = BitmapUtil.calculateInSampleSize(size[0], size[1], longestSide);
+                String message = size[0] + "x" + size[1] + " to " + longestSide + ": " + sampleSize;
+                int longest = Math.max(size[0], size[1]);
+                assertEquals(message, 0, sampleSize & (sampleSize - 1));
+                assertTrue(message, sampleSize == 1 || longest / sampleSize >= longestSide);
+                assertTrue(message, longest / (sampleSize * 2) < longestSide);
+            }
+        }
+    }
+
+    @Test
+    public void outputHasExactlyLongestSide() {
+        for (int[] size : DECODED_SIZES) {
+            byte[] jpeg = jpeg(size[0], size[1]);
+            for (int longestSide : DECODED_LONGEST_SIDES) {
+                Bitmap output = decodeAndTransform(jpeg, size[0], size[1], 0, longestSide);
+                String message = size[0] + "x" + size[1] + " to " + longestSide + ": " + output.getWidth() + "x" + output.getHeight();
+                int expected = Math.min(longestSide, Math.max(size[0], size[1]));
+                assertEquals(message, expected, Math.max(output.getWidth(), output.getHeight()));
+                assertTrue(message, Math.min(output.getWidth(), output.getHeight()) >= 1);
+                // Within a pixel of the source's aspect ratio
+                assertEquals(message, (double) size[0] / size[1] * output.getHeight(), output.getWidth(),
+                        1 + (double) size[0] / size[1]);
+                output.recycle();
+            }
+        }
+    }
+
+    @Test
+    public void outputKeepsAspectRatio() {
+        assertSize(1024, 768, decodeAndTransform(jpeg(4032, 3024), 4032, 3024, 0, 1024));
+        assertSize(768, 1024, decodeAndTransform(jpeg(3024, 4032), 3024, 4032, 0, 1024));
+        assertSize(1280, 720, decodeAndTransform(jpeg(1920, 1080), 1920, 1080, 0, 1280));
+    }
+
+    @Test
+    public void rotationSwapsSides() {
+        assertSize(720, 1280, decodeAndTransform(jpeg(1920, 1080), 1920, 1080, 90, 1280));
+        assertSize(1535, 2047, decodeAndTransform(jpeg(2047, 1535), 2047, 1535, 270, -1));
+        assertSize(1000, 667, decodeAndTransform(jpeg(1999, 1333), 1999, 1333, 180, 1000));
+    }
+
+    @Test
+    public void neverScalesUp() {
+        assertEquals(1, BitmapUtil.calculateInSampleSize(640, 480, 1024));
+        assertEquals(1f, BitmapUtil.calculateScale(640, 480, 1024), 0f);
+        assertEquals(1f, BitmapUtil.calculateScale(1024, 768, 1024), 0f);
+        assertSize(777, 555, decodeAndTransform(jpeg(777, 555), 777, 555, 0, 1024));
+    }
+
+    @Test
+    public void noLimitKeepsFullSize() {
+        for (int longestSide : new int[]{0, -1}) {
+            assertEquals(1, BitmapUtil.calculateInSampleSize(4032, 3024, longestSide));
+            assertEquals(1f, BitmapUtil.calculateScale(4032, 3024, longestSide), 0f);
+        }
+        assertSize(2049, 1537, decodeAndTransform(jpeg(2049, 1537), 2049, 1537, 0, -1));
+    }
+
+    private static void assertSize(int width, int height, Bitmap bitmap) {
+        assertEquals(width + "x" + height, width + "x" + height, bitmap.getWidth() + "x" + bitmap.getHeight());
+        bitmap.recycle();
+    }
+
+    /**
+     * Decodes at the sample size and transforms, as BitmapFactoryDecoder and processImage do.
+     */
+    private static Bitmap decodeAndTransform(byte[] jpeg, int width, int height, int orientation, int longestSide) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = BitmapUtil.calculateInSampleSize(width, height, longestSide);
+        options.inMutable = true;
+        Bitmap decoded = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        return BitmapUtil.transformBitmap(decoded, orientation, longestSide);
+    }
+
+    private static byte[] jpeg(int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GRAY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+}
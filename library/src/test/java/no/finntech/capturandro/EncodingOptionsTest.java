@@ -0,0 +1,42 @@
+package no.finntech.capturandro;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class EncodingOptionsTest {
+    @Test
+    public void fromStringReadsToString() {
+        for (EncodingOptions.Format format : EncodingOptions.Format.values()) {
+            for (boolean passthrough : new boolean[]{false, true}) {
+                EncodingOptions options = new EncodingOptions(format, 42, 300 * 1024, passthrough);
+                EncodingOptions parsed = EncodingOptions.fromString(options.toString());
+                assertEquals(options, parsed);
+                assertEquals(format, parsed.getFormat());
+                assertEquals(42, parsed.getQuality());
+                assertEquals(300 * 1024, parsed.getMaxBytes());
+                assertEquals(passthrough, parsed.isPassthrough());
+            }
+        }
+    }
+
+    @Test
+    public void toStringWithoutPassthroughIsUnchanged() {
+        // Part of the ResultCache key, a change would orphan all cached results
+        assertEquals("JPEG|75|0", EncodingOptions.DEFAULT.toString());
+        assertEquals(EncodingOptions.DEFAULT, EncodingOptions.fromString("JPEG|75|0"));
+    }
+
+    @Test
+    public void fromStringRejectsMalformedValues() {
+        // The ImportJournal skips lines that throw IllegalArgumentException
+        for (String value : new String[]{"", "JPEG", "JPEG|75", "PNG|75|0", "JPEG|high|0", "JPEG|75|none", "JPEG|101|0"}) {
+            try {
+                EncodingOptions.fromString(value);
+                fail("Parsed " + value);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}
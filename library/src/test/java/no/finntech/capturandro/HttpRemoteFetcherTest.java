@@ -0,0 +1,193 @@
+package no.finntech.capturandro;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+// Robolectric for android.util.Log, the fetcher itself only needs java.net
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class HttpRemoteFetcherTest {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] body = new byte[256 * 1024];
+    private LoopbackServer server;
+    private File directory;
+    private HttpRemoteFetcher fetcher;
+    private String url;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(42).nextBytes(body);
+        server = new LoopbackServer(body);
+        directory = new File(RuntimeEnvironment.getApplication().getCacheDir(), "http");
+        fetcher = new HttpRemoteFetcher(directory, 1024 * 1024);
+        url = "http://127.0.0.1:" + server.getPort() + "/image.jpg";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void revalidatesCachedResponse() throws IOException {
+        assertArrayEquals(body, readFully(fetcher.open(url)));
+        assertArrayEquals(body, readFully(fetcher.open(url)));
+
+        assertEquals(2, server.getRequests().size());
+        assertNull(server.getRequests().get(0));
+        assertEquals(ETAG, server.getRequests().get(1));
+        assertEquals(1, server.getFullResponses());
+    }
+
+    @Test
+    public void failedWriteIsNotCached() throws IOException {
+        // A directory where the response is cached makes opening the temp file fail
+        File temp = BitmapUtil.getTempFile(new File(directory, HttpRemoteFetcher.key(url) + "-" + Thread.currentThread().getId()));
+        assertTrue(temp.mkdirs());
+        InputStream in = fetcher.open(url);
+        byte[] first = new byte[1024];
+        int read = in.read(first);
+        // Writes would work again from here, the rest of the body must not be cached on its own
+        assertTrue(temp.delete());
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        received.write(first, 0, read);
+        received.write(readFully(in));
+        assertArrayEquals(body, received.toByteArray());
+
+        assertFalse(new File(directory, HttpRemoteFetcher.key(url)).exists());
+        assertFalse(temp.exists());
+        assertArrayEquals(body, readFully(fetcher.open(url)));
+        assertNull(server.getRequests().get(1));
+    }
+
+    @Test
+    public void partiallyReadResponseIsNotCached() throws IOException {
+        InputStream in = fetcher.open(url);
+        assertEquals(1024, in.read(new byte[1024]));
+        in.close();
+
+        assertArrayEquals(body, readFully(fetcher.open(url)));
+        assertNull(server.getRequests().get(1));
+        assertEquals(2, server.getFullResponses());
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Serves the body with an ETag, one request per connection, and answers a matching
+     * If-None-Match with 304.
+     */
+    private static class LoopbackServer {
+        private final byte[] body;
+        private final ServerSocket socket;
+        private final Thread thread;
+        // If-None-Match of each request, null if it had none
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+        private volatile int fullResponses;
+
+        LoopbackServer(byte[] body) throws IOException {
+            this.body = body;
+            this.socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            this.thread = new Thread(this::serve, "loopback-http");
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        List<String> getRequests() {
+            return requests;
+        }
+
+        int getFullResponses() {
+            return fullResponses;
+        }
+
+        void close() throws IOException {
+            socket.close();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void serve() {
+            while (!socket.isClosed()) {
+                try (Socket connection = socket.accept()) {
+                    respond(connection);
+                } catch (IOException e) {
+                    // Closed, or the client went away mid response
+                }
+            }
+        }
+
+        private void respond(Socket connection) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), US_ASCII));
+            if (reader.readLine() == null) {
+                return;
+            }
+            String ifNoneMatch = null;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("If-None-Match")) {
+                    ifNoneMatch = line.substring(colon + 1).trim();
+                }
+            }
+            requests.add(ifNoneMatch);
+            OutputStream out = connection.getOutputStream();
+            if (ETAG.equals(ifNoneMatch)) {
+                out.write(("HTTP/1.1 304 Not Modified\r\nETag: " + ETAG + "\r\nConnection: close\r\n\r\n").getBytes(US_ASCII));
+            } else {
+                fullResponses++;
+                out.write(("HTTP/1.1 200 OK\r\nETag: " + ETAG + "\r\nContent-Type: image/jpeg\r\nContent-Length: " + body.length
+                        + "\r\nConnection: close\r\n\r\n").getBytes(US_ASCII));
+                out.write(body);
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package no.finntech.capturandro;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegHeaderParserTest {
+    @Test
+    public void plainJpeg() throws IOException {
+        assertHeader("plain-320x240.jpg", 320, 240, 0);
+    }
+
+    @Test
+    public void bigEndianExif() throws IOException {
+        assertHeader("exif1-be-480x640.jpg", 480, 640, 0);
+        assertHeader("exif6-be-1280x960.jpg", 1280, 960, 90);
+        assertHeader("exif6-be-3264x2448.jpg", 3264, 2448, 90);
+    }
+
+    @Test
+    public void littleEndianExif() throws IOException {
+        assertHeader("exif3-le-1280x960.jpg", 1280, 960, 180);
+        assertHeader("exif8-le-640x480.jpg", 640, 480, 270);
+    }
+
+    @Test
+    public void xmpBeforeExif() throws IOException {
+        // The XMP packet says orientation 1, only the EXIF segment counts
+        assertHeader("xmp-exif6-be-640x480.jpg", 640, 480, 90);
+    }
+
+    @Test
+    public void fillBytesBeforeMarkers() throws IOException {
+        assertHeader("fill-exif3-be-640x480.jpg", 640, 480, 180);
+    }
+
+    @Test
+    public void progressive() throws IOException {
+        assertHeader("progressive-exif6-le-1280x960.jpg", 1280, 960, 90);
+    }
+
+    @Test
+    public void truncatedFilesAreLeftToExifInterface() throws IOException {
+        assertNull(parse(read("truncated-in-exif.jpg")));
+        assertNull(parse(read("truncated-before-sof.jpg")));
+    }
+
+    @Test
+    public void otherFormatsAreLeftToExifInterface() throws IOException {
+        assertNull(parse(read("not-a-jpeg.png")));
+        assertNull(parse(new byte[0]));
+        assertNull(parse(new byte[]{(byte) 0xFF}));
+    }
+
+    @Test
+    public void everyTruncationOfTheHeaderIsRejected() throws IOException {
+        byte[] bytes = read("xmp-exif6-be-640x480.jpg");
+        int headerLength = sofEnd(bytes);
+        for (int length = 0; length < headerLength; length++) {
+            assertNull("Cut at " + length, parse(Arrays.copyOf(bytes, length)));
+        }
+        assertNotNull(parse(Arrays.copyOf(bytes, headerLength)));
+    }
+
+    @Test
+    public void shortReads() throws IOException {
+        byte[] bytes = read("fill-exif3-be-640x480.jpg");
+        ImageHeader header = JpegHeaderParser.parse((position, buffer, offset, length) -> {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            buffer[offset] = bytes[(int) position];
+            return 1;
+        });
+        assertEquals(640, header.getWidth());
+        assertEquals(180, header.getOrientation());
+    }
+
+    private static void assertHeader(String name, int width, int height, int orientation) throws IOException {
+        ImageHeader header = parse(read(name));
+        assertNotNull(name, header);
+        assertEquals(name, width, header.getWidth());
+        assertEquals(name, height, header.getHeight());
+        assertEquals(name, orientation, header.getOrientation());
+        assertTrue(name, header.isJpeg());
+    }
+
+    private static ImageHeader parse(byte[] bytes) throws IOException {
+        return JpegHeaderParser.parse((position, buffer, offset, length) -> {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int read = (int) Math.min(length, bytes.length - position);
+            System.arraycopy(bytes, (int) position, buffer, offset, read);
+            return read;
+        });
+    }
+
+    /**
+     * Length up to the end of the SOF segment's dimensions, all the parser needs.
+     */
+    private static int sofEnd(byte[] bytes) {
+        for (int i = 2; i + 9 < bytes.length; i++) {
+            int marker = bytes[i + 1] & 0xff;
+            if ((bytes[i] & 0xff) == 0xFF && (marker == 0xC0 || marker == 0xC2)) {
+                return i + 9;
+            }
+        }
+        throw new AssertionError("No SOF");
+    }
+
+    private static byte[] read(String name) throws IOException {
+        InputStream in = JpegHeaderParserTest.class.getResourceAsStream("/corpus/" + name);
+        assertNotNull(name, in);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
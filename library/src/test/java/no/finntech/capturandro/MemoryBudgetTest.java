@@ -0,0 +1,137 @@
+package no.finntech.capturandro;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Robolectric for a working CancellationSignal
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 30)
+public class MemoryBudgetTest {
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private final MemoryBudget budget = new MemoryBudget(100);
+    private Thread waiter;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (waiter != null) {
+            waiter.interrupt();
+            waiter.join(TIMEOUT_MILLIS);
+        }
+    }
+
+    @Test
+    public void admitsReservationsWithinTheBudget() throws InterruptedException {
+        budget.acquire(40, new CancellationSignal());
+        budget.acquire(60, new CancellationSignal());
+        assertEquals(100, budget.getReservedBytes());
+        assertEquals(2, budget.getReservations());
+
+        budget.release(40);
+        budget.release(60);
+        assertEquals(0, budget.getReservedBytes());
+        assertEquals(0, budget.getReservations());
+    }
+
+    @Test
+    public void admitsAnImageLargerThanTheBudgetWhenItRunsAlone() throws InterruptedException {
+        budget.acquire(500, new CancellationSignal());
+        assertEquals(500, budget.getReservedBytes());
+        budget.release(500);
+    }
+
+    @Test
+    public void oversizedImageWaitsUntilItRunsAlone() throws InterruptedException {
+        budget.acquire(10, new CancellationSignal());
+        AtomicReference<Throwable> result = acquireInBackground(500, new CancellationSignal());
+        awaitWaiting();
+        assertEquals(1, budget.getReservations());
+
+        budget.release(10);
+        waiter.join(TIMEOUT_MILLIS);
+        assertFalse(waiter.isAlive());
+        assertNull(result.get());
+        assertEquals(500, budget.getReservedBytes());
+    }
+
+    @Test
+    public void waitsUntilEnoughIsReleased() throws InterruptedException {
+        budget.acquire(60, new CancellationSignal());
+        AtomicReference<Throwable> result = acquireInBackground(60, new CancellationSignal());
+        awaitWaiting();
+
+        budget.release(60);
+        waiter.join(TIMEOUT_MILLIS);
+        assertFalse(waiter.isAlive());
+        assertNull(result.get());
+        assertEquals(60, budget.getReservedBytes());
+        assertEquals(1, budget.getReservations());
+    }
+
+    @Test
+    public void cancellingWakesTheWaiterUp() throws InterruptedException {
+        budget.acquire(60, new CancellationSignal());
+        CancellationSignal signal = new CancellationSignal();
+        // As BitmapUtil.processImage does
+        signal.setOnCancelListener(budget::wakeUp);
+        AtomicReference<Throwable> result = acquireInBackground(60, signal);
+        awaitWaiting();
+
+        signal.cancel();
+        waiter.join(TIMEOUT_MILLIS);
+        assertFalse(waiter.isAlive());
+        assertTrue(String.valueOf(result.get()), result.get() instanceof OperationCanceledException);
+        // Nothing reserved for the cancelled import
+        assertEquals(60, budget.getReservedBytes());
+        assertEquals(1, budget.getReservations());
+    }
+
+    @Test
+    public void cancelledSignalIsNotAdmitted() throws InterruptedException {
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            budget.acquire(10, signal);
+            fail("Admitted a cancelled import");
+        } catch (OperationCanceledException expected) {
+        }
+        assertEquals(0, budget.getReservations());
+    }
+
+    private AtomicReference<Throwable> acquireInBackground(long bytes, CancellationSignal signal) {
+        AtomicReference<Throwable> result = new AtomicReference<>();
+        waiter = new Thread(() -> {
+            try {
+                budget.acquire(bytes, signal);
+            } catch (Throwable e) {
+                result.set(e);
+            }
+        });
+        waiter.start();
+        return result;
+    }
+
+    private void awaitWaiting() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (waiter.getState() != Thread.State.WAITING) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Not waiting for the budget: " + waiter.getState());
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package no.finntech.capturandro;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.reactivex.Observable;
+import io.reactivex.observers.TestObserver;
+import io.reactivex.subjects.PublishSubject;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final AtomicInteger calls = new AtomicInteger();
+    private PublishSubject<Integer> upstream;
+
+    private Observable<Integer> importOnce() {
+        return singleFlight.share("key", () -> {
+            calls.incrementAndGet();
+            upstream = PublishSubject.create();
+            return upstream;
+        });
+    }
+
+    @Test
+    public void concurrentSubscribersShareOneImport() throws Exception {
+        int subscribers = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(subscribers);
+        try {
+            CyclicBarrier start = new CyclicBarrier(subscribers);
+            List<Future<TestObserver<Integer>>> observers = new ArrayList<>();
+            for (int i = 0; i < subscribers; i++) {
+                observers.add(executor.submit(() -> {
+                    start.await(5, TimeUnit.SECONDS);
+                    return importOnce().test();
+                }));
+            }
+            List<TestObserver<Integer>> subscribed = new ArrayList<>();
+            for (Future<TestObserver<Integer>> observer : observers) {
+                subscribed.add(observer.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+
+            upstream.onNext(1);
+            upstream.onComplete();
+            for (TestObserver<Integer> observer : subscribed) {
+                observer.assertResult(1);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void laterSubscriberGetsEarlierResultsReplayed() {
+        TestObserver<Integer> first = importOnce().test();
+        upstream.onNext(1);
+        TestObserver<Integer> second = importOnce().test();
+        upstream.onNext(2);
+        upstream.onComplete();
+
+        assertEquals(1, calls.get());
+        first.assertResult(1, 2);
+        second.assertResult(1, 2);
+    }
+
+    @Test
+    public void releasedOnCompletion() {
+        importOnce().test();
+        upstream.onComplete();
+
+        importOnce().test();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void releasedOnError() {
+        importOnce().test();
+        upstream.onError(new RuntimeException());
+
+        importOnce().test();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void releasedOnceEverySubscriberDisposed() {
+        TestObserver<Integer> first = importOnce().test();
+        TestObserver<Integer> second = importOnce().test();
+        PublishSubject<Integer> shared = upstream;
+
+        first.dispose();
+        assertTrue(shared.hasObservers());
+        second.dispose();
+        assertFalse(shared.hasObservers());
+
+        importOnce().test();
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void keysDoNotShare() {
+        singleFlight.share("a", () -> {
+            calls.incrementAndGet();
+            return Observable.never();
+        }).test();
+        singleFlight.share("b", () -> {
+            calls.incrementAndGet();
+            return Observable.never();
+        }).test();
+        assertEquals(2, calls.get());
+    }
+}
@@ -10,6 +10,7 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
@@ -21,8 +22,6 @@ import androidx.annotation.NonNull;
 import androidx.core.app.ActivityCompat;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 import io.reactivex.Observable;
 import no.finntech.capturandro.Capturandro;
@@ -33,11 +32,10 @@ public class CapturandroSampleActivity extends Activity implements ActivityCompa
     private static final int GALLERY_RESULT_CODE = 2;
     private static final int CAMERA_PERMISSION_CODE = 3;
     private static final int GALLERY_PERMISSION_CODE = 4;
+    private static final String TAG = "CapturandroSample";
 
     private Capturandro capturandro = null;
 
-    private static List<Uri> uris = new ArrayList<>(); // lazy mans onSaveInstanceState... really lazy :p
-
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -46,16 +44,19 @@ public class CapturandroSampleActivity extends Activity implements ActivityCompa
         if (capturandro == null) {
             capturandro = new Capturandro(this, callback, "no.finn.capturandro.provider");
         }
+        // Timings per import and running totals, for comparing changes to the pipeline on a device
+        Capturandro.setMetrics(trace -> {
+            Log.d(TAG, trace.toString());
+            Log.d(TAG, Capturandro.getImportStatistics().toString());
+        });
+        // Shows the images imported before a rotation again, without importing them again
         capturandro.onCreate(savedInstanceState);
-        for (Uri uri : uris) {
-            showImage(resolveBitmap(uri));
-        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        capturandro.onDestroy();
+        capturandro.onDestroy(this);
     }
 
     @Override
@@ -143,7 +144,6 @@ public class CapturandroSampleActivity extends Activity implements ActivityCompa
             processing++;
             observable.subscribe(uri -> {
                 downloadComplete();
-                uris.add(uri);
                 showImage(resolveBitmap(uri));
             }, throwable -> {
                 downloadComplete();